@@ -0,0 +1,68 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing command arguments. Every queued generation is parsed again from
+// its spec when the plugin starts, so a long queue pays this many times.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NiceArgsBenchmark
+{
+    private WorldGenerationControl plugin;
+    private String[] simple = "OurBeautifulWorld -50 -50 50 50".split(" ");
+    private String[] quoted = "\"Bob and Sam's \\\"Awesome\\\" World\" -50 -50 50 50 /fast /verbose /lighting:force".split(" ");
+    private String[] shapes = ("MyWorld rect:-2000,-2000,2000,2000 poly:2000,-500,6000,0,2000,500 -circle:0,0,200"
+                               + " /order:spiral /retain:4096 /lightingBudget:5 /lightingThreads:3 /metrics:json").split(" ");
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.plugin = StandIns.plugin();
+    }
+
+    @Benchmark
+    public Object simple() throws Throwable { return this.plugin.new NiceArgs(this.simple); }
+
+    @Benchmark
+    public Object quoted() throws Throwable { return this.plugin.new NiceArgs(this.quoted); }
+
+    @Benchmark
+    public Object shapeWithSwitches() throws Throwable { return this.plugin.new NiceArgs(this.shapes); }
+}
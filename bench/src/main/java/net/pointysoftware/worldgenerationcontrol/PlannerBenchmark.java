@@ -0,0 +1,98 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Planning every region of a big area, without touching any chunks. This is
+// what a generation pays for up front (and on every resume) before the first
+// chunk is loaded.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlannerBenchmark
+{
+    @Param({ "ROWS", "SERPENTINE", "SPIRAL", "REGIONFILE" })
+    public String order;
+
+    @Param({ "square", "circle" })
+    public String shape;
+
+    // Radius (or half the side) in chunks. 1250 chunks is a 20000 block
+    // radius.
+    @Param({ "125", "1250" })
+    public int radius;
+
+    // /normal
+    @Param({ "12" })
+    public int regionsize;
+
+    private RegionPlanner.Traversal traversal;
+    private Shape area;
+
+    @Setup
+    public void setup()
+    {
+        this.traversal = RegionPlanner.Traversal.valueOf(this.order);
+        if (this.shape.equals("circle"))
+            this.area = new Shape.Circle(0, 0, this.radius);
+        else
+            this.area = new Shape.Rect(-this.radius, -this.radius, this.radius, this.radius);
+    }
+
+    @Benchmark
+    public int planAll(Blackhole bh)
+    {
+        RegionPlanner p = RegionPlanner.create(this.traversal, this.area, this.regionsize);
+        int regions = 0;
+        while (p.next())
+        {
+            bh.consume(p.getX1() ^ p.getZ2());
+            regions++;
+        }
+        return regions;
+    }
+
+    // What the status line asks for every step
+    @Benchmark
+    public int remaining()
+    {
+        return RegionPlanner.create(this.traversal, this.area, this.regionsize).getRemaining();
+    }
+}
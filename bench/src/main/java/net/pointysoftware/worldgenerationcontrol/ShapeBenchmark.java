@@ -0,0 +1,118 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Deciding which chunks of a shape's bounding box get generated. Each
+// benchmark counts the chunks in the shape, one row at a time like
+// QueuedRegion does.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeBenchmark
+{
+    // In chunks
+    @Param({ "64", "512" })
+    public int radius;
+
+    private Shape circle, ring, polygon;
+
+    @Setup
+    public void setup()
+    {
+        int r = this.radius;
+        this.circle = new Shape.Circle(0, 0, r);
+        this.ring = new Shape.Difference(this.circle, new Shape.Circle(0, 0, r * 3 / 4));
+        // A star, in block coordinates, which crosses itself
+        long[] xs = new long[5], zs = new long[5];
+        for (int i = 0; i < 5; i++)
+        {
+            double a = Math.PI * 2 * (i * 2 % 5) / 5;
+            xs[i] = Math.round(Math.cos(a) * r * 16);
+            zs[i] = Math.round(Math.sin(a) * r * 16);
+        }
+        this.polygon = new Shape.Polygon(xs, zs);
+    }
+
+    // The test QueuedRegion used to do for every chunk of /gencircle
+    @Benchmark
+    public int circleDistancePerChunk()
+    {
+        int r = this.radius, count = 0;
+        for (int z = -r; z <= r; z++)
+            for (int x = -r; x <= r; x++)
+                if (r >= Math.sqrt((Math.pow(Math.abs(x), 2) + Math.pow(Math.abs(z), 2))))
+                    count++;
+        return count;
+    }
+
+    @Benchmark
+    public int circleSpans() { return count(this.circle); }
+
+    @Benchmark
+    public int circleContains()
+    {
+        Shape s = this.circle;
+        int count = 0;
+        for (int z = s.getZStart(); z <= s.getZEnd(); z++)
+            for (int x = s.getXStart(); x <= s.getXEnd(); x++)
+                if (s.contains(x, z))
+                    count++;
+        return count;
+    }
+
+    @Benchmark
+    public int ringSpans() { return count(this.ring); }
+
+    @Benchmark
+    public int polygonSpans() { return count(this.polygon); }
+
+    private static int count(Shape s)
+    {
+        int count = 0;
+        for (int z = s.getZStart(); z <= s.getZEnd(); z++)
+        {
+            int[] spans = s.getSpans(z);
+            for (int i = 0; i < spans.length; i += 2)
+                for (int x = spans[i]; x <= spans[i + 1]; x++)
+                    count++;
+        }
+        return count;
+    }
+}
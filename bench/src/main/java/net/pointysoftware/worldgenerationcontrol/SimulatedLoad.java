@@ -0,0 +1,193 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+// Not a JMH benchmark: runs whole generations through the plugin's scheduler,
+// tick by tick, against SimulatedBackends, and reports what each tick cost.
+// For trying planners, scheduling and memory handling at sizes no test server
+// could manage, e.g.
+//
+//   java -Xmx1g -cp target/benchmarks.jar net.pointysoftware.worldgenerationcontrol.SimulatedLoad \
+//       worlds=3 radius=1000 speed=VERYFAST generate=0.5 memory=81920
+//
+// radius is in chunks, latencies (load, generate, unload...) in milliseconds
+// and memory is bytes per loaded chunk. slice is /sliceSize, keepup=true is
+// /forceKeepUp. existing is the radius of chunks that are already generated,
+// disk the bytes each of those takes up on disk. Ticks aren't padded out to
+// 50ms, so the simulated time is ticks / 20.
+//
+// follow=speed runs /genfollow instead, for ticks ticks, with a player in
+// each world flying east at speed blocks a second. Players are tracked in
+// real time, so these ticks are padded out to 50ms. Any chunk in view of the
+// player that doesn't exist yet is generated on the spot, as the server
+// would, and counted as one we didn't get to in time.
+public class SimulatedLoad
+{
+    public static void main(String[] argv) throws Exception
+    {
+        HashMap<String, String> args = new HashMap<String, String>();
+        args.put("worlds", "1");
+        args.put("radius", "500");
+        args.put("speed", "VERYFAST");
+        args.put("order", "ROWS");
+        args.put("memory", "0");
+        args.put("existing", "0");
+        args.put("disk", "8192");
+        args.put("ticks", "1200");
+        args.put("view", "10");
+        for (String a:argv)
+        {
+            int eq = a.indexOf('=');
+            if (eq < 1)
+                throw new IllegalArgumentException("Arguments are name=value, not " + a);
+            args.put(a.substring(0, eq).toLowerCase(Locale.ENGLISH), a.substring(eq + 1));
+        }
+
+        WorldGenerationControl plugin = StandIns.plugin();
+        int radius = Integer.parseInt(args.get("radius"));
+        List<SimulatedBackend> worlds = new ArrayList<SimulatedBackend>();
+        List<GenerationMetrics> metrics = new ArrayList<GenerationMetrics>();
+        for (int i = 0; i < Integer.parseInt(args.get("worlds")); i++)
+        {
+            SimulatedBackend backend = new SimulatedBackend("sim" + i);
+            for (SimulatedBackend.Op op:SimulatedBackend.Op.values())
+            {
+                String ms = args.get(op.name().toLowerCase(Locale.ENGLISH));
+                if (ms != null)
+                    backend.setLatency(op, Double.parseDouble(ms));
+            }
+            backend.setChunkMemory(Integer.parseInt(args.get("memory")));
+            backend.setChunkDiskSize(Integer.parseInt(args.get("disk")));
+            int existing = Integer.parseInt(args.get("existing"));
+            for (int x = -existing; x < existing; x++)
+                for (int z = -existing; z < existing; z++)
+                    backend.setExisting(x, z);
+            worlds.add(backend);
+
+            WorldGenerationControl.GenerationRegion gen = plugin.new GenerationRegion(backend);
+            gen.setSpeed(WorldGenerationControl.GenerationSpeed.valueOf(args.get("speed").toUpperCase(Locale.ENGLISH)));
+            gen.setTraversal(RegionPlanner.Traversal.valueOf(args.get("order").toUpperCase(Locale.ENGLISH)));
+            gen.setLighting(WorldGenerationControl.GenerationLighting.NONE);
+            if (args.get("slice") != null)
+                gen.setSliceSize(Integer.parseInt(args.get("slice")));
+            gen.setForceKeepup(Boolean.parseBoolean(args.get("keepup")));
+            if (args.get("follow") != null)
+            {
+                backend.movePlayer("player", 0, 0);
+                gen.setFollowPlayers(10, Integer.parseInt(args.get("view")));
+            }
+            else // Worlds are given by the backend
+                gen.addSquareRegion(null, -radius * 16, -radius * 16, radius * 16 - 1, radius * 16 - 1);
+            plugin.queueGeneration(gen);
+            metrics.add(gen.getMetrics());
+        }
+
+        // Tick costs to the nearest 0.1ms, anything over 1s in the last slot
+        long[] costs = new long[10001];
+        long ticks = 0, busy = 0, max = 0;
+        int peakloaded = 0;
+        long peakheap = 0;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        double follow = args.get("follow") != null ? Double.parseDouble(args.get("follow")) : -1;
+        int view = Integer.parseInt(args.get("view"));
+        long maxticks = Long.parseLong(args.get("ticks"));
+        long missed = 0;
+        long start = System.nanoTime();
+        while (plugin.getGenerations().size() > 0 && (follow < 0 || ticks < maxticks))
+        {
+            long tickstart = System.nanoTime();
+            plugin.run();
+            long cost = System.nanoTime() - tickstart;
+            if (follow >= 0)
+            {
+                double x = follow * (ticks + 1) / 20;
+                for (SimulatedBackend w:worlds)
+                {
+                    w.movePlayer("player", x, 8);
+                    int cx = (int)Math.floor(x / 16);
+                    for (int dx = -view; dx <= view; dx++)
+                        for (int dz = -view; dz <= view; dz++)
+                            if (dx * dx + dz * dz <= view * view && !w.exists(cx + dx, dz))
+                            {
+                                w.setExisting(cx + dx, dz);
+                                missed++;
+                            }
+                }
+                long left = 50000000L - (System.nanoTime() - tickstart);
+                if (left > 0)
+                    Thread.sleep(left / 1000000, (int)(left % 1000000));
+            }
+            costs[(int)Math.min(costs.length - 1, cost / 100000)]++;
+            ticks++;
+            busy += cost;
+            max = Math.max(max, cost);
+
+            int loaded = 0;
+            for (SimulatedBackend w:worlds)
+                loaded += w.getLoadedChunkCount();
+            peakloaded = Math.max(peakloaded, loaded);
+            if (ticks % 20 == 0)
+                peakheap = Math.max(peakheap, memory.getHeapMemoryUsage().getUsed());
+        }
+        double wall = (double)(System.nanoTime() - start) / 1000000000;
+
+        long chunks = 0, saved = 0, unchanged = 0, unsaved = 0;
+        for (SimulatedBackend w:worlds)
+        {
+            chunks += w.getCount(SimulatedBackend.Op.GENERATE) + w.getCount(SimulatedBackend.Op.LOAD);
+            saved += w.getSavedCount() + w.getCount(SimulatedBackend.Op.WRITE);
+        }
+        for (GenerationMetrics m:metrics)
+        {
+            unchanged += m.getChunksUnchanged();
+            unsaved += m.getUnsavedBytes();
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%d chunks in %d ticks (%.1f simulated minutes, %.1fs wall), %.0f chunks per simulated second",
+                                         chunks, ticks, ticks / 20.0 / 60, wall, chunks / (ticks / 20.0)));
+        System.out.println(String.format(Locale.ENGLISH, "Tick cost: mean %.2fms, p50 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms",
+                                         (double)busy / ticks / 1000000, percentile(costs, ticks, 0.5), percentile(costs, ticks, 0.99),
+                                         percentile(costs, ticks, 0.999), (double)max / 1000000));
+        System.out.println(String.format(Locale.ENGLISH, "%d chunks saved, %d left unchanged (%.1fMiB of writes avoided)", saved, unchanged, unsaved / 1048576.0));
+        System.out.println(String.format(Locale.ENGLISH, "Peak %d chunks left loaded between ticks, %.0fMiB heap used", peakloaded, peakheap / 1048576.0));
+        if (follow >= 0)
+            System.out.println(String.format(Locale.ENGLISH, "%d chunks came into view before they were generated", missed));
+    }
+
+    private static double percentile(long[] costs, long total, double pct)
+    {
+        long target = (long)Math.ceil(total * pct), seen = 0;
+        for (int i = 0; i < costs.length; i++)
+        {
+            seen += costs[i];
+            if (seen >= target)
+                return (i + 1) / 10.0;
+        }
+        return costs.length / 10.0;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+// Just enough of a server for the benchmarks to create the plugin. Worlds are
+// SimulatedBackends, so anything else the plugin asks the server for gets a
+// harmless default.
+final class StandIns
+{
+    private StandIns() {}
+
+    private static Server server = null;
+
+    // The plugin, attached to a stand-in server that has no players and a
+    // scheduler that hands out task ids but never runs anything. Call
+    // WorldGenerationControl.run yourself.
+    static synchronized WorldGenerationControl plugin() throws Exception
+    {
+        if (server == null)
+        {
+            final Logger logger = Logger.getLogger("WorldGenerationControl-bench");
+            logger.setUseParentHandlers(false);
+            logger.setLevel(Level.OFF);
+            final BukkitScheduler scheduler = proxy(BukkitScheduler.class, new InvocationHandler()
+            {
+                private int tasks = 0;
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    if (m.getName().startsWith("schedule") && m.getReturnType() == int.class)
+                        return ++this.tasks;
+                    return defaultValue(m.getReturnType());
+                }
+            });
+            server = proxy(Server.class, new InvocationHandler()
+            {
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    String name = m.getName();
+                    if (name.equals("getLogger")) return logger;
+                    if (name.equals("getScheduler")) return scheduler;
+                    if (name.equals("getName") || name.equals("getVersion")) return "bench";
+                    return defaultValue(m.getReturnType());
+                }
+            });
+            if (Bukkit.getServer() == null)
+                Bukkit.setServer(server);
+        }
+
+        WorldGenerationControl plugin = new WorldGenerationControl();
+        // JavaPlugin only gets its server from the plugin loader
+        for (Field f:JavaPlugin.class.getDeclaredFields())
+            if (f.getType() == Server.class)
+            {
+                f.setAccessible(true);
+                f.set(plugin, server);
+            }
+        return plugin;
+    }
+
+    // A null handler answers everything with defaults
+    private static <T> T proxy(Class<T> type, InvocationHandler handler)
+    {
+        if (handler == null)
+            handler = new InvocationHandler()
+            {
+                public Object invoke(Object self, Method m, Object[] args) { return defaultValue(m.getReturnType()); }
+            };
+        return type.cast(Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Class<?> type)
+    {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0D;
+        if (type == float.class) return 0F;
+        if (type == short.class) return (short)0;
+        if (type == byte.class) return (byte)0;
+        if (type == char.class) return (char)0;
+        if (type.isArray()) return Array.newInstance(type.getComponentType(), 0);
+        if (type == List.class) return new ArrayList<Object>();
+        return null;
+    }
+}
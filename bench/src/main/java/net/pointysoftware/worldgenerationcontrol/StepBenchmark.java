@@ -0,0 +1,99 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A whole generation, tick after tick, against a SimulatedBackend with
+// no latency. Chunks cost nothing to generate there, so this is all the plugin's
+// own overhead: planning, bookkeeping, status messages and load/unload calls.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// runStep takes a break below 200MiB free
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class StepBenchmark
+{
+    // Half the side, in chunks
+    @Param({ "32", "128" })
+    public int radius;
+
+    @Param({ "NORMAL", "VERYFAST" })
+    public String speed;
+
+    @Param({ "ROWS", "SPIRAL" })
+    public String order;
+
+    @Param({ "false", "true" })
+    public boolean circle;
+
+    private WorldGenerationControl plugin;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.plugin = StandIns.plugin();
+    }
+
+    @Benchmark
+    public int generate()
+    {
+        WorldGenerationControl.GenerationRegion gen = this.plugin.new GenerationRegion(new SimulatedBackend("bench"));
+        gen.setSpeed(WorldGenerationControl.GenerationSpeed.valueOf(this.speed));
+        gen.setTraversal(RegionPlanner.Traversal.valueOf(this.order));
+        // Lighting needs a real server
+        gen.setLighting(WorldGenerationControl.GenerationLighting.NONE);
+        // Worlds are given by the backend
+        int blocks = this.radius * 16;
+        if (this.circle)
+            gen.addCircularRegion(null, 0, 0, blocks);
+        else
+            gen.addSquareRegion(null, -blocks, -blocks, blocks - 1, blocks - 1);
+
+        // One tick at a time, as far as the generation can tell
+        int ticks = 0;
+        do
+        {
+            // Only memory or players should hold it up, and there are no
+            // players
+            if (++ticks > 10000000)
+                throw new IllegalStateException("Generation never finished, is the heap too small?");
+            gen.runSlice();
+        } while (!gen.runStep(0));
+        return ticks;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A set of chunk coordinates, one bit per chunk. Bits are kept in pages of
+// 32x32 chunks, the same as a region file, so only areas that actually have
+// chunks in them cost anything.
+//
+// Pages can be filled in on another thread with setPage, after which they are
+// safe to read from the main thread. get() and set() are for use from one
+// thread only. size() can be called from any.
+class ChunkBitSet
+{
+    // 32 * 32 bits
+    public final static int PAGE_LONGS = 16;
+
+    private ConcurrentHashMap<Long, long[]> pages = new ConcurrentHashMap<Long, long[]>();
+    private int count = 0;
+    // Bumped whenever pages are put or removed other than by set(), so a
+    // cached lookup (and especially a cached miss) from before is redone
+    private volatile int version = 0;
+    // The last pages get() and set() looked up (null where there wasn't one),
+    // a slot for each mix of odd and even page coordinates, so lookups
+    // around a chunk, even one in the corner of a page, don't box a key each
+    private int[] cachedversions = { -1, -1, -1, -1 };
+    private long[] cachedkeys = new long[4];
+    private long[][] cachedpages = new long[4][];
+
+    private static long pageKey(int px, int pz) { return ((long)px << 32) | (pz & 0xFFFFFFFFL); }
+
+    private long[] findPage(int px, int pz)
+    {
+        int slot = (px & 1) | ((pz & 1) << 1);
+        long key = pageKey(px, pz);
+        int version = this.version;
+        if (this.cachedversions[slot] != version || this.cachedkeys[slot] != key)
+        {
+            this.cachedpages[slot] = this.pages.get(key);
+            this.cachedkeys[slot] = key;
+            this.cachedversions[slot] = version;
+        }
+        return this.cachedpages[slot];
+    }
+
+    private long[] addPage(int px, int pz)
+    {
+        long[] page = new long[PAGE_LONGS];
+        this.pages.put(pageKey(px, pz), page);
+        this.cachedpages[(px & 1) | ((pz & 1) << 1)] = page;
+        return page;
+    }
+
+    public boolean get(int x, int z)
+    {
+        long[] page = this.findPage(x >> 5, z >> 5);
+        if (page == null) return false;
+        int bit = (x & 31) | ((z & 31) << 5);
+        return (page[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    public void set(int x, int z)
+    {
+        long[] page = this.findPage(x >> 5, z >> 5);
+        if (page == null)
+            page = this.addPage(x >> 5, z >> 5);
+        int bit = (x & 31) | ((z & 31) << 5);
+        long mask = 1L << (bit & 63);
+        if ((page[bit >> 6] & mask) == 0)
+        {
+            page[bit >> 6] |= mask;
+            synchronized (this)
+            {
+                this.count++;
+            }
+        }
+    }
+
+    // Chunks x1 through x2 of row z, a page's worth of row at a time
+    public void setSpan(int x1, int x2, int z)
+    {
+        int row = z & 31;
+        for (int px = x1 >> 5; px <= x2 >> 5; px++)
+        {
+            long[] page = this.findPage(px, z >> 5);
+            if (page == null)
+                page = this.addPage(px, z >> 5);
+            int from = Math.max(x1, px << 5) & 31, to = Math.min(x2, (px << 5) + 31) & 31;
+            long bits = (to == 31 ? 0xFFFFFFFFL : (1L << (to + 1)) - 1) & ~((1L << from) - 1);
+            bits <<= (row & 1) << 5;
+            long before = page[row >> 1];
+            if ((bits & ~before) == 0) continue;
+            page[row >> 1] = before | bits;
+            synchronized (this)
+            {
+                this.count += Long.bitCount(bits & ~before);
+            }
+        }
+    }
+
+    // The page holding the chunks of region file px, pz, as laid out for
+    // setPage, or null if none of them are set. Don't modify it.
+    public long[] getPage(int px, int pz) { return this.pages.get(pageKey(px, pz)); }
+
+    // Replace a whole page (the chunks of region file px, pz) at once. Bit
+    // (x + z * 32) is chunk x, z within it.
+    public void setPage(int px, int pz, long[] page)
+    {
+        int bits = 0;
+        for (int i = 0; i < page.length; i++)
+            bits += Long.bitCount(page[i]);
+        if (bits == 0) return;
+        synchronized (this)
+        {
+            this.count += bits;
+            this.pages.put(pageKey(px, pz), page);
+            this.version++;
+        }
+    }
+
+    // Says which pages retainPages should keep
+    interface PageFilter
+    {
+        boolean keep(int px, int pz);
+    }
+
+    // Forget every page (32x32 chunks, as in getPage) filter doesn't keep,
+    // for sets that would otherwise only ever grow
+    public void retainPages(PageFilter filter)
+    {
+        Iterator<Map.Entry<Long, long[]>> i = this.pages.entrySet().iterator();
+        while (i.hasNext())
+        {
+            Map.Entry<Long, long[]> e = i.next();
+            long key = e.getKey();
+            if (filter.keep((int)(key >> 32), (int)key))
+                continue;
+            int bits = 0;
+            for (long word:e.getValue())
+                bits += Long.bitCount(word);
+            synchronized (this)
+            {
+                i.remove();
+                this.count -= bits;
+                this.version++;
+            }
+        }
+    }
+
+    // Number of chunks in the set
+    public synchronized int size() { return this.count; }
+}
@@ -0,0 +1,112 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.Arrays;
+
+// A queue of chunks, each packed into a long along with a few flags, so
+// working through a region doesn't take an object per chunk. The array is
+// kept when the list is cleared, so once it has grown to fit a region it's
+// reused for every region after.
+//
+// An entry is z in the top 28 bits, x (offset to be positive) in the next
+// 28, and the flags below in the low byte. Entries compare as longs the same
+// way their chunks do by z, then x, which is the order regions are listed
+// in, and indexOf relies on it.
+class ChunkList
+{
+    // On the edge of its region
+    public final static int EDGE = 1;
+    // Loaded by us and not unloaded since
+    public final static int LOADED = 2;
+    // Already loaded by someone else when we got to it
+    public final static int WASLOADED = 4;
+    // Generated (or regenerated) when we loaded it
+    public final static int CREATED = 8;
+    // Done with by the lighting stage, whether or not it needed relighting
+    public final static int LIT = 16;
+
+    private final static int FLAG_BITS = 8;
+    private final static int X_BITS = 28;
+    private final static int X_MASK = (1 << X_BITS) - 1;
+    private final static int X_OFFSET = 1 << (X_BITS - 1);
+
+    private long[] entries = new long[64];
+    private int head = 0, tail = 0;
+
+    public static long pack(int x, int z, int flags)
+    {
+        return ((long)z << (FLAG_BITS + X_BITS)) | ((long)((x + X_OFFSET) & X_MASK) << FLAG_BITS) | (flags & 0xFF);
+    }
+    public static int getX(long c) { return ((int)(c >>> FLAG_BITS) & X_MASK) - X_OFFSET; }
+    public static int getZ(long c) { return (int)(c >> (FLAG_BITS + X_BITS)); }
+    public static boolean is(long c, int flag) { return (c & flag) != 0; }
+
+    public int size() { return this.tail - this.head; }
+    public long get(int i) { return this.entries[this.head + i]; }
+    public void set(int i, long c) { this.entries[this.head + i] = c; }
+    public void clear() { this.head = this.tail = 0; }
+
+    public void add(long c)
+    {
+        if (this.tail == this.entries.length)
+        {
+            // Make room at the back by moving up, if there's enough
+            // already polled from the front
+            if (this.head > this.entries.length / 2)
+            {
+                System.arraycopy(this.entries, this.head, this.entries, 0, this.tail - this.head);
+                this.tail -= this.head;
+                this.head = 0;
+            }
+            else
+                this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
+        }
+        this.entries[this.tail++] = c;
+    }
+
+    // Take the first entry off the front. Don't call it on an empty list.
+    public long poll()
+    {
+        long c = this.entries[this.head++];
+        if (this.head == this.tail)
+            this.head = this.tail = 0;
+        return c;
+    }
+
+    // Where chunk x, z is in the list, or -1. Only for lists added to in
+    // order.
+    public int indexOf(int x, int z)
+    {
+        long key = pack(x, z, 0) >> FLAG_BITS;
+        int lo = this.head, hi = this.tail - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            long k = this.entries[mid] >> FLAG_BITS;
+            if (k < key) lo = mid + 1;
+            else if (k > key) hi = mid - 1;
+            else return mid - this.head;
+        }
+        return -1;
+    }
+}
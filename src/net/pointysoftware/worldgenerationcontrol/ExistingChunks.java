@@ -0,0 +1,124 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.plugin.Plugin;
+
+// Which chunks are saved in a world's region files, for /genfollow, which
+// asks about chunks all over the place as players move. Each region file's
+// header is read off the main thread the first time one of its chunks is
+// asked about, and again once that read is older than MAX_AGE, since the
+// server keeps saving the chunks players load. Until a read is back,
+// isMissing says no, so nothing gets generated on top of what might be there.
+class ExistingChunks
+{
+    private final static long MAX_AGE = 30000000000L;
+    // Reads on their way at once, each is an async task of its own
+    private final static int MAX_PENDING = 8;
+
+    private Plugin plugin;
+    private File regiondir;
+    private ChunkBitSet saved = new ChunkBitSet();
+    // Region file to the nanoTime its header was read, 0 while the read is
+    // on its way
+    private ConcurrentHashMap<Long, Long> reads = new ConcurrentHashMap<Long, Long>();
+    private AtomicInteger pending = new AtomicInteger();
+    // The last region file isMissing found a fresh read of, so a run of
+    // lookups in one file doesn't box a key each
+    private boolean lastvalid = false;
+    private long lastkey, lastread;
+
+    ExistingChunks(Plugin plugin, File regiondir)
+    {
+        this.plugin = plugin;
+        this.regiondir = regiondir;
+    }
+
+    // Whether chunk x, z was saved as of the last read of its region file
+    public boolean isSaved(int x, int z) { return this.saved.get(x, z); }
+
+    // Whether chunk x, z is known not to be saved, as of a recent read
+    public boolean isMissing(int x, int z)
+    {
+        if (this.saved.get(x, z)) return false;
+        final int rx = x >> 5, rz = z >> 5;
+        final long key = ((long)rx << 32) | (rz & 0xFFFFFFFFL);
+        long now = System.nanoTime();
+        if (this.lastvalid && this.lastkey == key && now - this.lastread <= MAX_AGE)
+            return true;
+        Long read = this.reads.get(key);
+        if (read != null && read == 0)
+            return false;
+        if (read != null && now - read <= MAX_AGE)
+        {
+            this.lastvalid = true;
+            this.lastkey = key;
+            this.lastread = read;
+            return true;
+        }
+        if (this.pending.get() >= MAX_PENDING)
+            return false;
+        this.pending.incrementAndGet();
+        this.reads.put(key, 0L);
+        this.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(this.plugin, new Runnable()
+        {
+            public void run()
+            {
+                long start = System.nanoTime();
+                try
+                {
+                    long[] page = RegionFileScanner.readExisting(regiondir, rx, rz);
+                    if (page != null)
+                        saved.setPage(rx, rz, page);
+                }
+                finally
+                {
+                    // Never 0, that means pending
+                    reads.put(key, start == 0 ? 1 : start);
+                    pending.decrementAndGet();
+                }
+            }
+        });
+        return false;
+    }
+
+    // Forget region files (pages, as in ChunkBitSet) filter doesn't keep
+    public void retainPages(ChunkBitSet.PageFilter filter)
+    {
+        this.saved.retainPages(filter);
+        Iterator<Map.Entry<Long, Long>> i = this.reads.entrySet().iterator();
+        while (i.hasNext())
+        {
+            long key = i.next().getKey();
+            if (!filter.keep((int)(key >> 32), (int)key))
+                i.remove();
+        }
+        this.lastvalid = false;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters and per-phase timings for one generation. Recorded from the main
+// thread, read from wherever (JMX), so everything goes through this' lock;
+// it's never contended for long.
+//
+// Timings go into histograms with power of two buckets of microseconds, so
+// percentiles are only accurate to within a factor of two, but it costs the
+// same for a week long job as for a minute long one.
+class GenerationMetrics implements GenerationMetricsMBean
+{
+    public enum Phase
+    {
+        // Loading one section, however many ticks it was spread over
+        STEP,
+        // One tick's worth of loading a section
+        SLICE,
+        // Finding the next region, including skipping existing ones
+        PLAN,
+        // Loading chunks that were already on disk
+        LOAD,
+        // Loading chunks that had to be generated (or regenerated). Their
+        // block populators run as part of this when neighbors are loaded.
+        GENERATE,
+        // Loading the rim of a regenerated region, which is what runs the
+        // populators on the new chunks
+        POPULATE,
+        // One tick's worth of the lighting stage
+        LIGHTING,
+        // Unloading a finished region, which queues its chunks for saving
+        UNLOAD,
+        // /forceKeepUp writing out the chunks we unload, or the whole world
+        // where the server won't let us do just those
+        SAVE
+    }
+
+    // UNCHANGED chunks were unloaded without saving, UNSAVED_BYTES is what
+    // they take up on disk, so what saving them again would have written.
+    // AUDITED chunks had their light checked by /lighting:audit, BROKEN ones
+    // failed and were relit.
+    public enum Counter { REGIONS, CREATED, EXISTING, REGENERATED, LIT, UNLOADED, SKIPPED, RETAINED, UNCHANGED, UNSAVED_BYTES,
+                          AUDITED, BROKEN }
+
+    private final static int BUCKETS = 40;
+
+    private int id;
+    private String world, spec;
+    private long start = System.nanoTime();
+    private long[] counters = new long[Counter.values().length];
+    private long[][] buckets = new long[Phase.values().length][BUCKETS];
+    private long[] counts = new long[Phase.values().length];
+    private long[] totals = new long[Phase.values().length];
+    private long[] maxes = new long[Phase.values().length];
+    private ObjectName name = null;
+
+    GenerationMetrics(int id, String world, String spec)
+    {
+        this.id = id;
+        this.world = world;
+        this.spec = spec;
+    }
+
+    public synchronized void count(Counter c) { this.counters[c.ordinal()]++; }
+    public synchronized void count(Counter c, long n) { this.counters[c.ordinal()] += n; }
+
+    // Record a phase that started at System.nanoTime() start, returns now so
+    // phases can be chained
+    public long time(Phase p, long start)
+    {
+        long now = System.nanoTime();
+        this.record(p, now - start);
+        return now;
+    }
+
+    public synchronized void record(Phase p, long nanos)
+    {
+        int i = p.ordinal();
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.buckets[i][bucket]++;
+        this.counts[i]++;
+        this.totals[i] += nanos;
+        this.maxes[i] = Math.max(this.maxes[i], nanos);
+    }
+
+    //
+    // JMX
+    //
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.pointysoftware.worldgenerationcontrol:type=Generation,id=" + this.id);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            this.name = name;
+        }
+        catch (Exception e) {} // Metrics are a nicety, no JMX just means no JMX
+    }
+    public void unregister()
+    {
+        if (this.name == null) return;
+        try { ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name); }
+        catch (Exception e) {}
+        this.name = null;
+    }
+
+    public int getId() { return this.id; }
+    public String getWorld() { return this.world; }
+    public String getSpec() { return this.spec; }
+    public double getElapsedSeconds() { return (double)(System.nanoTime() - this.start) / 1000000000; }
+    public synchronized double getChunksPerSecond()
+    {
+        double elapsed = this.getElapsedSeconds();
+        long chunks = this.counters[Counter.CREATED.ordinal()] + this.counters[Counter.EXISTING.ordinal()]
+                      + this.counters[Counter.REGENERATED.ordinal()];
+        return elapsed > 0 ? chunks / elapsed : 0;
+    }
+
+    public synchronized long getRegions() { return this.counters[Counter.REGIONS.ordinal()]; }
+    public synchronized long getChunksCreated() { return this.counters[Counter.CREATED.ordinal()]; }
+    public synchronized long getChunksExisting() { return this.counters[Counter.EXISTING.ordinal()]; }
+    public synchronized long getChunksRegenerated() { return this.counters[Counter.REGENERATED.ordinal()]; }
+    public synchronized long getChunksLit() { return this.counters[Counter.LIT.ordinal()]; }
+    public synchronized long getChunksUnloaded() { return this.counters[Counter.UNLOADED.ordinal()]; }
+    public synchronized long getChunksSkipped() { return this.counters[Counter.SKIPPED.ordinal()]; }
+    public synchronized long getChunksRetained() { return this.counters[Counter.RETAINED.ordinal()]; }
+    public synchronized long getChunksUnchanged() { return this.counters[Counter.UNCHANGED.ordinal()]; }
+    public synchronized long getUnsavedBytes() { return this.counters[Counter.UNSAVED_BYTES.ordinal()]; }
+    public synchronized long getChunksAudited() { return this.counters[Counter.AUDITED.ordinal()]; }
+    public synchronized long getChunksBroken() { return this.counters[Counter.BROKEN.ordinal()]; }
+
+    public String[] getPhaseNames()
+    {
+        Phase[] phases = Phase.values();
+        String[] ret = new String[phases.length];
+        for (int i = 0; i < phases.length; i++)
+            ret[i] = phases[i].name().toLowerCase(Locale.ENGLISH);
+        return ret;
+    }
+    public synchronized long[] getPhaseCounts() { return this.counts.clone(); }
+    public synchronized double[] getPhaseTotalMillis()
+    {
+        double[] ret = new double[this.totals.length];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = (double)this.totals[i] / 1000000;
+        return ret;
+    }
+    public synchronized double[] getPhaseMeanMillis()
+    {
+        double[] ret = new double[this.totals.length];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = this.counts[i] > 0 ? (double)this.totals[i] / this.counts[i] / 1000000 : 0;
+        return ret;
+    }
+    public double[] getPhase50thPercentileMillis() { return this.percentiles(0.5); }
+    public double[] getPhase99thPercentileMillis() { return this.percentiles(0.99); }
+    public synchronized double[] getPhaseMaxMillis()
+    {
+        double[] ret = new double[this.maxes.length];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = (double)this.maxes[i] / 1000000;
+        return ret;
+    }
+
+    // Upper bound of the bucket the percentile falls in, capped at the max
+    private synchronized double[] percentiles(double pct)
+    {
+        double[] ret = new double[this.counts.length];
+        for (int i = 0; i < ret.length; i++)
+        {
+            long target = (long)Math.ceil(this.counts[i] * pct);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS && target > 0; b++)
+            {
+                seen += this.buckets[i][b];
+                if (seen >= target)
+                {
+                    ret[i] = Math.min((double)(1L << b) / 1000, (double)this.maxes[i] / 1000000);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    //
+    // File export
+    //
+    // Appends one line with everything so far to file, as CSV (with a header
+    // line if the file is new) or as a JSON object per line.
+    public void export(File file, boolean json) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Unable to create " + parent);
+        boolean isnew = !file.exists() || file.length() == 0;
+
+        String[] phases = this.getPhaseNames();
+        String[] counternames = new String[Counter.values().length];
+        for (int i = 0; i < counternames.length; i++)
+            counternames[i] = Counter.values()[i].name().toLowerCase(Locale.ENGLISH);
+        long[] counters, counts;
+        double[] totals, p50, p99, maxes;
+        synchronized (this)
+        {
+            counters = this.counters.clone();
+            counts = this.getPhaseCounts();
+            totals = this.getPhaseTotalMillis();
+            p50 = this.getPhase50thPercentileMillis();
+            p99 = this.getPhase99thPercentileMillis();
+            maxes = this.getPhaseMaxMillis();
+        }
+
+        StringBuilder line = new StringBuilder();
+        if (json)
+        {
+            line.append("{\"time\":").append(System.currentTimeMillis());
+            line.append(",\"id\":").append(this.id);
+            line.append(",\"world\":\"").append(this.world.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+            line.append(",\"elapsed\":").append(fmt(this.getElapsedSeconds()));
+            line.append(",\"chunksPerSecond\":").append(fmt(this.getChunksPerSecond()));
+            for (int i = 0; i < counters.length; i++)
+                line.append(",\"").append(counternames[i]).append("\":").append(counters[i]);
+            line.append(",\"phases\":{");
+            for (int i = 0; i < phases.length; i++)
+            {
+                line.append(i > 0 ? "," : "").append("\"").append(phases[i]).append("\":{");
+                line.append("\"count\":").append(counts[i]);
+                line.append(",\"totalMs\":").append(fmt(totals[i]));
+                line.append(",\"p50Ms\":").append(fmt(p50[i]));
+                line.append(",\"p99Ms\":").append(fmt(p99[i]));
+                line.append(",\"maxMs\":").append(fmt(maxes[i])).append("}");
+            }
+            line.append("}}\n");
+        }
+        else
+        {
+            if (isnew)
+            {
+                line.append("time,id,elapsed,chunks_per_second");
+                for (String c:counternames)
+                    line.append(",").append(c);
+                for (String p:phases)
+                    line.append(",").append(p).append("_count,").append(p).append("_total_ms,").append(p).append("_p50_ms,")
+                        .append(p).append("_p99_ms,").append(p).append("_max_ms");
+                line.append("\n");
+            }
+            line.append(System.currentTimeMillis()).append(",").append(this.id).append(",").append(fmt(this.getElapsedSeconds()))
+                .append(",").append(fmt(this.getChunksPerSecond()));
+            for (long c:counters)
+                line.append(",").append(c);
+            for (int i = 0; i < phases.length; i++)
+                line.append(",").append(counts[i]).append(",").append(fmt(totals[i])).append(",").append(fmt(p50[i]))
+                    .append(",").append(fmt(p99[i])).append(",").append(fmt(maxes[i]));
+            line.append("\n");
+        }
+
+        FileWriter out = new FileWriter(file, true);
+        try { out.write(line.toString()); }
+        finally { out.close(); }
+    }
+
+    private static String fmt(double v) { return String.format(Locale.ENGLISH, "%.3f", v); }
+}
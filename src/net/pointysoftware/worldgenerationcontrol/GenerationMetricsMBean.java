@@ -0,0 +1,60 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// What a generation's GenerationMetrics shows over JMX, under
+// net.pointysoftware.worldgenerationcontrol:type=Generation,id=N
+//
+// JMX only accepts public interfaces for standard MBeans.
+public interface GenerationMetricsMBean
+{
+    int getId();
+    String getWorld();
+    String getSpec();
+    double getElapsedSeconds();
+    double getChunksPerSecond();
+
+    long getRegions();
+    long getChunksCreated();
+    long getChunksExisting();
+    long getChunksRegenerated();
+    long getChunksLit();
+    long getChunksUnloaded();
+    long getChunksSkipped();
+    long getChunksRetained();
+    // Unloaded without saving since we didn't change them, and the bytes of
+    // writes that saved
+    long getChunksUnchanged();
+    long getUnsavedBytes();
+    // Checked by /lighting:audit, and found broken and relit
+    long getChunksAudited();
+    long getChunksBroken();
+
+    // One entry per phase, in the order of getPhaseNames
+    String[] getPhaseNames();
+    long[] getPhaseCounts();
+    double[] getPhaseTotalMillis();
+    double[] getPhaseMeanMillis();
+    double[] getPhase50thPercentileMillis();
+    double[] getPhase99thPercentileMillis();
+    double[] getPhaseMaxMillis();
+}
@@ -0,0 +1,288 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only record of queued generations and how far along they are, so
+// they can be picked back up after a restart or crash.
+//
+// Each record is [int length][byte type][int job id][payload][int crc32], so
+// a record torn by a crash is simply where reading stops. Appends only go to
+// the OS, which survives the server process dying; we only wait on the disk
+// at most once every SYNC_INTERVAL. The file is rewritten with just the live
+// jobs when opened and whenever it grows past COMPACT_SIZE.
+class JobJournal
+{
+    private final static int MAGIC = 0x5747434A; // WGCJ
+    private final static byte JOB = 1;
+    private final static byte PROGRESS = 2;
+    private final static byte DONE = 3;
+    private final static byte SPEC = 4;
+    private final static long COMPACT_SIZE = 1024 * 1024;
+    private final static long SYNC_INTERVAL = 1000000000L;
+
+    public static class Entry
+    {
+        private int id;
+        private String spec;
+        private int[] state;
+        Entry(int id, String spec) { this.id = id; this.spec = spec; }
+        public int getId() { return this.id; }
+        // The command that recreates this job
+        public String getSpec() { return this.spec; }
+        // Last recorded progress, or null if it never got started
+        public int[] getState() { return this.state; }
+    }
+
+    private File file;
+    private FileOutputStream out = null;
+    private FileChannel channel = null;
+    private long size = 0;
+    private long lastsync = 0;
+    private boolean dirty = false;
+    private LinkedHashMap<Integer, Entry> live = new LinkedHashMap<Integer, Entry>();
+    private ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(64);
+    private CRC32 crc = new CRC32();
+
+    JobJournal(File file)
+    {
+        this.file = file;
+    }
+
+    // Read back whatever is in the journal, and start a fresh compacted one.
+    // Returns the jobs that never finished, in the order they were queued.
+    public List<Entry> open() throws IOException
+    {
+        if (this.file.exists())
+            this.read();
+        this.compact();
+        return new ArrayList<Entry>(this.live.values());
+    }
+
+    public void add(int id, String spec) throws IOException
+    {
+        Entry e = new Entry(id, spec);
+        this.live.put(id, e);
+        DataOutputStream d = this.begin(JOB, id);
+        d.writeUTF(spec);
+        this.commit();
+    }
+
+    public void progress(int id, int[] state) throws IOException
+    {
+        Entry e = this.live.get(id);
+        if (e == null) return;
+        e.state = state;
+        DataOutputStream d = this.begin(PROGRESS, id);
+        d.writeShort(state.length);
+        for (int i = 0; i < state.length; i++)
+            d.writeInt(state[i]);
+        this.commit();
+    }
+
+    // Job's command changed, e.g. it was reprioritized
+    public void update(int id, String spec) throws IOException
+    {
+        Entry e = this.live.get(id);
+        if (e == null) return;
+        e.spec = spec;
+        DataOutputStream d = this.begin(SPEC, id);
+        d.writeUTF(spec);
+        this.commit();
+    }
+
+    // Job finished or was cancelled
+    public void done(int id) throws IOException
+    {
+        if (this.live.remove(id) == null) return;
+        if (this.live.size() == 0)
+        {
+            // Nothing left to resume, start over with an empty file
+            this.compact();
+            return;
+        }
+        this.begin(DONE, id);
+        this.commit();
+    }
+
+    public void close() throws IOException
+    {
+        if (this.out == null) return;
+        try
+        {
+            if (this.dirty) this.channel.force(false);
+        }
+        finally
+        {
+            this.out.close();
+            this.out = null;
+            this.channel = null;
+        }
+    }
+
+    private void read() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a WorldGenerationControl journal: " + this.file);
+            while (true)
+            {
+                int length = in.readInt();
+                if (length < 5 || length > 65536) break;
+                byte[] data = new byte[length];
+                in.readFully(data);
+                this.crc.reset();
+                this.crc.update(data, 0, length);
+                if (in.readInt() != (int)this.crc.getValue()) break;
+
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(data));
+                byte type = r.readByte();
+                int id = r.readInt();
+                if (type == JOB)
+                    this.live.put(id, new Entry(id, r.readUTF()));
+                else if (type == PROGRESS)
+                {
+                    Entry e = this.live.get(id);
+                    int[] state = new int[r.readShort()];
+                    for (int i = 0; i < state.length; i++)
+                        state[i] = r.readInt();
+                    if (e != null) e.state = state;
+                }
+                else if (type == SPEC)
+                {
+                    Entry e = this.live.get(id);
+                    String spec = r.readUTF();
+                    if (e != null) e.spec = spec;
+                }
+                else if (type == DONE)
+                    this.live.remove(id);
+            }
+        }
+        catch (EOFException e) {} // Torn or empty tail, everything before it is good
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Write out only the live jobs and their latest progress, then switch
+    // over to appending to that.
+    private void compact() throws IOException
+    {
+        this.close();
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Unable to create " + parent);
+        File tmp = new File(this.file.getPath() + ".tmp");
+        this.out = new FileOutputStream(tmp);
+        this.channel = this.out.getChannel();
+        this.size = 0;
+        DataOutputStream header = new DataOutputStream(this.out);
+        header.writeInt(MAGIC);
+        this.size += 4;
+        for (Entry e:this.live.values())
+        {
+            this.begin(JOB, e.id).writeUTF(e.spec);
+            this.write();
+            if (e.state != null)
+            {
+                DataOutputStream d = this.begin(PROGRESS, e.id);
+                d.writeShort(e.state.length);
+                for (int i = 0; i < e.state.length; i++)
+                    d.writeInt(e.state[i]);
+                this.write();
+            }
+        }
+        this.channel.force(false);
+        this.out.close();
+        // Not atomic on windows, but there the old journal is still around
+        // until the rename fails
+        if (!tmp.renameTo(this.file) && (!this.file.delete() || !tmp.renameTo(this.file)))
+            throw new IOException("Unable to replace " + this.file);
+        this.out = new FileOutputStream(this.file, true);
+        this.channel = this.out.getChannel();
+        this.dirty = false;
+        this.lastsync = System.nanoTime();
+    }
+
+    private DataOutputStream begin(byte type, int id) throws IOException
+    {
+        if (this.out == null)
+            throw new IOException("Journal is not open");
+        this.record.reset();
+        DataOutputStream d = new DataOutputStream(this.record);
+        d.writeByte(type);
+        d.writeInt(id);
+        return d;
+    }
+
+    private void write() throws IOException
+    {
+        byte[] data = this.record.toByteArray();
+        this.crc.reset();
+        this.crc.update(data, 0, data.length);
+        // One write per record, so a crash can't interleave half of one
+        this.frame.reset();
+        DataOutputStream d = new DataOutputStream(this.frame);
+        d.writeInt(data.length);
+        d.write(data);
+        d.writeInt((int)this.crc.getValue());
+        this.frame.writeTo(this.out);
+        this.size += this.frame.size();
+    }
+
+    private void commit() throws IOException
+    {
+        this.write();
+        this.dirty = true;
+        if (this.size > COMPACT_SIZE)
+        {
+            this.compact();
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - this.lastsync > SYNC_INTERVAL)
+        {
+            this.channel.force(false);
+            this.lastsync = now;
+            this.dirty = false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import org.bukkit.ChunkSnapshot;
+
+// Looks for the kinds of broken light data that show up in practice, so
+// /lighting:audit only relights the chunks that need it:
+//
+// - Columns that are dark right above their highest block. Nothing is over
+//   them, so sky light there is always 15. Chunks that were saved before
+//   their lighting was worked out are dark all over, so this finds those too.
+// - Light sources (torches, lava, glowstone...) sitting in less block light
+//   than they give off. Only if we could find the server's table of what
+//   gives off light, and the only check in worlds without a sky.
+//
+// Works from a snapshot, so it doesn't care which thread it's on.
+class LightingAudit
+{
+    private int height;
+    private boolean sky;
+    private int[] emission = null;
+
+    LightingAudit(NmsAdapter nms, int height, boolean sky)
+    {
+        this.height = height;
+        this.sky = sky;
+        try
+        {
+            if (nms != null)
+                this.emission = (int[])nms.getNmsClass("Block").getField("lightEmission").get(null);
+        }
+        catch (Exception e) {}
+        catch (LinkageError e) {}
+    }
+
+    // Whether this can find anything at all here
+    public boolean isUseful() { return this.sky || this.emission != null; }
+
+    // What's wrong with a chunk's light, or null if it looks fine
+    public String check(ChunkSnapshot snap)
+    {
+        if (this.sky)
+        {
+            int dark = 0;
+            for (int x = 0; x < 16; x++)
+                for (int z = 0; z < 16; z++)
+                {
+                    int y = snap.getHighestBlockYAt(x, z);
+                    if (y >= 0 && y < this.height && snap.getBlockSkyLight(x, y, z) == 0)
+                        dark++;
+                }
+            if (dark > 0)
+                return dark + " columns dark under open sky";
+        }
+
+        if (this.emission != null)
+        {
+            for (int y = 0; y < this.height; y++)
+                for (int x = 0; x < 16; x++)
+                    for (int z = 0; z < 16; z++)
+                    {
+                        int id = snap.getBlockTypeId(x, y, z);
+                        if (id > 0 && id < this.emission.length && this.emission[id] > 0
+                            && snap.getBlockEmittedLight(x, y, z) < this.emission[id])
+                            return "unlit light source at " + x + ", " + y + ", " + z;
+                    }
+        }
+        return null;
+    }
+}
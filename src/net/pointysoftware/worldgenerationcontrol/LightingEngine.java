@@ -0,0 +1,355 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+
+// Works out sky and block light from scratch for a chunk, off the main thread,
+// using snapshots of it and its eight neighbors. Light travels at most 15
+// blocks, so that's everything that can affect it.
+//
+// Uses the same rules as minecraft: sky light comes straight down at 15, in
+// worlds that have a sky, losing each block's opacity once it's hit
+// something, and both kinds of light spread to neighboring blocks losing at
+// least 1 per block. Only the values that differ from the snapshot are
+// written back, on the main thread, through the same chunk method the server
+// uses to set light.
+//
+// Needs the block light tables and light setter from net.minecraft.server,
+// create() returns null if this isn't a server we understand. The setter is
+// called for every changed block, so it's a method handle.
+class LightingEngine
+{
+    private final static int W = 48;
+
+    // Light for one chunk, ready to be written back. Each change is packed as
+    // y << 16 | z << 12 | x << 8 | sky << 4 | block
+    public static class Result
+    {
+        private int x, z;
+        private int[] changes;
+        private String error, problem;
+        Result(int x, int z, int[] changes, String error) { this.x = x; this.z = z; this.changes = changes; this.error = error; }
+        public int getX() { return this.x; }
+        public int getZ() { return this.z; }
+        public int getChanges() { return this.changes == null ? 0 : this.changes.length; }
+        // For submitAudit, what LightingAudit found wrong, or null
+        public String getProblem() { return this.problem; }
+        // Set if computing this chunk failed
+        public String getError() { return this.error; }
+    }
+
+    private int[] opacity, emission;
+    private MethodHandle setlight;
+    private Object sky, block;
+    private NmsAdapter nms;
+    private int height;
+    private boolean hassky;
+    private ExecutorService pool;
+    // A chunk's working arrays are several megabytes, so each worker keeps
+    // its own and reuses them for every chunk it lights
+    private ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>();
+    private ConcurrentLinkedQueue<Result> done = new ConcurrentLinkedQueue<Result>();
+
+    private LightingEngine() {}
+
+    private static class Buffers
+    {
+        byte[] opac, light, skylight;
+        int[] queue;
+        boolean[] queued;
+        Buffers(int size)
+        {
+            this.opac = new byte[size];
+            this.light = new byte[size];
+            this.skylight = new byte[size];
+            this.queue = new int[size];
+            this.queued = new boolean[size];
+        }
+    }
+
+    public static LightingEngine create(NmsAdapter nms, int threads, int height, boolean hassky)
+    {
+        if (nms == null || !nms.hasHandles())
+            return null;
+        LightingEngine engine = new LightingEngine();
+        engine.nms = nms;
+        try
+        {
+            Class<?> block = nms.getNmsClass("Block");
+            engine.opacity = (int[])block.getField("lightBlock").get(null);
+            engine.emission = (int[])block.getField("lightEmission").get(null);
+
+            Class<?> enumsky = nms.getNmsClass("EnumSkyBlock");
+            for (Object o:enumsky.getEnumConstants())
+            {
+                if (((Enum<?>)o).name().equals("SKY")) engine.sky = o;
+                else if (((Enum<?>)o).name().equals("BLOCK")) engine.block = o;
+            }
+
+            // Chunk.a(EnumSkyBlock, x, y, z, level)
+            Class<?> chunk = nms.getNmsClass("Chunk");
+            for (Method m:chunk.getMethods())
+            {
+                Class<?>[] p = m.getParameterTypes();
+                if (p.length == 5 && p[0] == enumsky && p[1] == int.class && p[2] == int.class
+                    && p[3] == int.class && p[4] == int.class && m.getReturnType() == void.class)
+                {
+                    engine.setlight = MethodHandles.lookup().unreflect(m).asType(
+                        MethodType.methodType(void.class, Object.class, Object.class, int.class, int.class, int.class, int.class));
+                    break;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        catch (LinkageError e)
+        {
+            return null;
+        }
+        if (engine.sky == null || engine.block == null || engine.setlight == null)
+            return null;
+
+        engine.height = height;
+        engine.hassky = hassky;
+        // Bukkit's async scheduler gives every task its own thread, so keep
+        // our own pool sized to the machine
+        engine.pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "WorldGenerationControl lighting " + (++this.count));
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        return engine;
+    }
+
+    public void shutdown()
+    {
+        this.pool.shutdownNow();
+        this.done.clear();
+    }
+
+    // Queue lighting for the middle chunk of a 3x3 area of snapshots,
+    // area[dx + 1][dz + 1]. Results show up in poll() in no particular order.
+    public void submit(final ChunkSnapshot[][] area)
+    {
+        this.pool.execute(new Runnable()
+        {
+            public void run()
+            {
+                ChunkSnapshot middle = area[1][1];
+                Result r;
+                try
+                {
+                    r = new Result(middle.getX(), middle.getZ(), compute(area), null);
+                }
+                catch (Exception e)
+                {
+                    r = new Result(middle.getX(), middle.getZ(), null, e.toString());
+                }
+                done.add(r);
+            }
+        });
+    }
+
+    // Queue a LightingAudit check of a chunk instead. Its result has no
+    // changes, just getProblem().
+    public void submitAudit(final ChunkSnapshot snap, final LightingAudit audit)
+    {
+        this.pool.execute(new Runnable()
+        {
+            public void run()
+            {
+                Result r;
+                try
+                {
+                    r = new Result(snap.getX(), snap.getZ(), null, null);
+                    r.problem = audit.check(snap);
+                }
+                catch (Exception e)
+                {
+                    r = new Result(snap.getX(), snap.getZ(), null, e.toString());
+                }
+                done.add(r);
+            }
+        });
+    }
+
+    // A finished chunk, or null
+    public Result poll() { return this.done.poll(); }
+
+    // Write a result into the (loaded) chunk it's for. Main thread only.
+    public void apply(Chunk chunk, Result r) throws Exception
+    {
+        if (r.changes == null) return;
+        Object raw = this.nms.getHandle(chunk);
+        try
+        {
+            for (int i = 0; i < r.changes.length; i++)
+            {
+                int c = r.changes[i];
+                int y = c >>> 16, z = (c >> 12) & 15, x = (c >> 8) & 15;
+                this.setlight.invokeExact(raw, this.sky, x, y, z, (c >> 4) & 15);
+                this.setlight.invokeExact(raw, this.block, x, y, z, c & 15);
+            }
+        }
+        catch (Exception e) { throw e; }
+        catch (Error e) { throw e; }
+        catch (Throwable t) { throw new RuntimeException(t); }
+    }
+
+    private int[] compute(ChunkSnapshot[][] area)
+    {
+        int h = this.height;
+        Buffers buf = this.buffers.get();
+        if (buf == null)
+            this.buffers.set(buf = new Buffers(W * W * h));
+        // opac is written in full and queue is only read where written, the
+        // rest start out dark. queued is normally left clear by spread(),
+        // unless a chunk before this one failed partway.
+        byte[] opac = buf.opac, light = buf.light, skylight = buf.skylight;
+        int[] queue = buf.queue;
+        boolean[] queued = buf.queued;
+        Arrays.fill(light, (byte)0);
+        Arrays.fill(skylight, (byte)0);
+        Arrays.fill(queued, false);
+
+        // Block opacity, and sky light straight down each column
+        for (int cx = 0; cx < 3; cx++)
+            for (int cz = 0; cz < 3; cz++)
+            {
+                ChunkSnapshot snap = area[cx][cz];
+                for (int x = 0; x < 16; x++)
+                    for (int z = 0; z < 16; z++)
+                    {
+                        int col = (cz * 16 + z) * W + cx * 16 + x;
+                        int sky = snap == null || !this.hassky ? 0 : 15;
+                        for (int y = h - 1; y >= 0; y--)
+                        {
+                            int i = y * W * W + col;
+                            int op = 15;
+                            if (snap != null)
+                            {
+                                int type = snap.getBlockTypeId(x, y, z);
+                                op = type < this.opacity.length ? Math.min(15, this.opacity[type]) : 15;
+                                if (type < this.emission.length)
+                                    light[i] = (byte)this.emission[type];
+                            }
+                            opac[i] = (byte)op;
+                            if (sky > 0)
+                            {
+                                if (op == 0 && sky != 15) op = 1;
+                                sky = Math.max(0, sky - op);
+                                skylight[i] = (byte)sky;
+                            }
+                        }
+                    }
+            }
+
+        spread(skylight, opac, queue, queued, h);
+        spread(light, opac, queue, queued, h);
+
+        // Only what changed in the middle chunk
+        ChunkSnapshot middle = area[1][1];
+        int[] changes = new int[256];
+        int n = 0;
+        for (int y = 0; y < h; y++)
+            for (int z = 0; z < 16; z++)
+                for (int x = 0; x < 16; x++)
+                {
+                    int i = y * W * W + (16 + z) * W + 16 + x;
+                    int s = skylight[i], b = light[i];
+                    if (s != middle.getBlockSkyLight(x, y, z) || b != middle.getBlockEmittedLight(x, y, z))
+                    {
+                        if (n == changes.length)
+                            changes = Arrays.copyOf(changes, n * 2);
+                        changes[n++] = (y << 16) | (z << 12) | (x << 8) | (s << 4) | b;
+                    }
+                }
+        return Arrays.copyOf(changes, n);
+    }
+
+    // Flood light outwards from every lit block
+    private static void spread(byte[] light, byte[] opac, int[] queue, boolean[] queued, int h)
+    {
+        // Each block is in the queue at most once, so it can't overflow
+        int head = 0, tail = 0, size = 0;
+        for (int i = 0; i < light.length; i++)
+            if (light[i] > 1)
+            {
+                queue[tail++] = i;
+                queued[i] = true;
+                size++;
+            }
+        if (tail == queue.length) tail = 0;
+        int layer = W * W;
+        while (size > 0)
+        {
+            int i = queue[head];
+            head = head + 1 == queue.length ? 0 : head + 1;
+            size--;
+            queued[i] = false;
+            int l = light[i];
+            int x = i % W, z = (i / W) % W, y = i / layer;
+            for (int d = 0; d < 6; d++)
+            {
+                int n;
+                if (d == 0)      { if (x == 0) continue; n = i - 1; }
+                else if (d == 1) { if (x == W - 1) continue; n = i + 1; }
+                else if (d == 2) { if (z == 0) continue; n = i - W; }
+                else if (d == 3) { if (z == W - 1) continue; n = i + W; }
+                else if (d == 4) { if (y == 0) continue; n = i - layer; }
+                else             { if (y == h - 1) continue; n = i + layer; }
+                int nl = l - Math.max(1, opac[n]);
+                if (nl > light[n])
+                {
+                    light[n] = (byte)nl;
+                    if (nl > 1 && !queued[n])
+                    {
+                        queued[n] = true;
+                        queue[tail] = n;
+                        tail = tail + 1 == queue.length ? 0 : tail + 1;
+                        size++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+// Decides whether there's memory to generate with, going by how much of the
+// old generation is in use right after a garbage collection, rather than
+// however much garbage happens to be lying around in the young generation.
+// The JVM tells us when a collection finishes and what it left behind, so
+// this never has to force a collection to find out.
+//
+// The answer is graded: past SHRINK_AT generations take smaller bites, past
+// PAUSE_AT (or with less than MIN_FREE left) they wait until it drops back
+// under RESUME_AT.
+//
+// Garbage that made it to the old generation stays counted until the old
+// generation itself is collected, which the JVM may not bother with while
+// we're paused and not making any. So if a pause drags on without an old
+// collection to confirm it (or without one at all for a long while),
+// generations carry on slowly instead, which eventually brings one about.
+class MemoryGovernor
+{
+    public enum Level { OK, SHRINK, PAUSE }
+
+    private final static double SHRINK_AT = 0.55;
+    private final static double PAUSE_AT = 0.70;
+    private final static double RESUME_AT = 0.60;
+    // Each step needs about this much on top of what's in use
+    private final static long MIN_FREE = 200L * 1024 * 1024;
+    private final static long STALE = 30000000000L;
+    private final static long VERY_STALE = 300000000000L;
+    private final static String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    // The old generation, or null on a JVM that doesn't have one we can find
+    private MemoryPoolMXBean pool = null;
+    // Names of the collectors that collect it
+    private HashSet<String> oldcollectors = new HashSet<String>();
+    private long oldthreshold = 0;
+    private List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+    private NotificationListener listener;
+    private volatile boolean notified = false;
+    // After the last collection of any kind, and the last one that collected
+    // the old generation
+    private long used = 0, max = 1;
+    private boolean oldroom = true;
+    private long oldsampled = 0;
+    private boolean paused = false;
+    private long pausedsince = 0;
+
+    MemoryGovernor()
+    {
+        // The old generation is the heap pool that has both a usage threshold
+        // (eden doesn't) and a collection usage threshold (nor does survivor)
+        for (MemoryPoolMXBean p:ManagementFactory.getMemoryPoolMXBeans())
+            if (p.getType() == MemoryType.HEAP && p.isValid() && p.isUsageThresholdSupported()
+                && p.isCollectionUsageThresholdSupported())
+            {
+                this.pool = p;
+                break;
+            }
+        if (this.pool == null)
+            return;
+
+        this.listener = new NotificationListener()
+        {
+            public void handleNotification(Notification n, Object handback)
+            {
+                try
+                {
+                    if (n.getType().equals(GC_NOTIFICATION))
+                    {
+                        // GarbageCollectionNotificationInfo, without needing
+                        // com.sun.management to read it
+                        CompositeData info = (CompositeData)n.getUserData();
+                        CompositeData gcinfo = (CompositeData)info.get("gcInfo");
+                        TabularData pools = (TabularData)gcinfo.get("memoryUsageAfterGc");
+                        CompositeData row = pools.get(new Object[] { pool.getName() });
+                        MemoryUsage after = row != null ? MemoryUsage.from((CompositeData)row.get("value")) : pool.getUsage();
+                        sample(after, oldcollectors.contains((String)info.get("gcName")));
+                    }
+                    else if (n.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED))
+                        sample(MemoryNotificationInfo.from((CompositeData)n.getUserData()).getUsage(), true);
+                    else
+                        return;
+                }
+                catch (Exception e)
+                {
+                    // Not what we expected, but it did just collect something
+                    sample(pool.getUsage(), false);
+                }
+                notified = true;
+            }
+        };
+        long max = this.pool.getUsage().getMax();
+        if (max > 0)
+        {
+            try
+            {
+                this.oldthreshold = this.pool.getCollectionUsageThreshold();
+                this.pool.setCollectionUsageThreshold((long)(max * PAUSE_AT));
+            }
+            catch (Exception e) {} // Someone else's problem, we still get GC notifications
+        }
+        this.listen(ManagementFactory.getMemoryMXBean());
+        for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (Arrays.asList(gc.getMemoryPoolNames()).contains(this.pool.getName()))
+                this.oldcollectors.add(gc.getName());
+            this.listen(gc);
+        }
+        this.sample(this.pool.getCollectionUsage(), true);
+    }
+
+    private void listen(Object bean)
+    {
+        if (!(bean instanceof NotificationEmitter)) return;
+        try
+        {
+            ((NotificationEmitter)bean).addNotificationListener(this.listener, null, null);
+            this.emitters.add((NotificationEmitter)bean);
+        }
+        catch (Exception e) {}
+    }
+
+    // Stop listening, when the plugin is disabled
+    public void release()
+    {
+        for (NotificationEmitter e:this.emitters)
+        {
+            try { e.removeNotificationListener(this.listener); }
+            catch (Exception ex) {}
+        }
+        this.emitters.clear();
+        if (this.pool != null && this.pool.getUsage().getMax() > 0)
+        {
+            try { this.pool.setCollectionUsageThreshold(this.oldthreshold); }
+            catch (Exception e) {}
+        }
+    }
+
+    // Old generation usage as of the end of a collection, old if it was
+    // collected too. Called from whatever thread the JVM sends notifications
+    // on.
+    private synchronized void sample(MemoryUsage u, boolean old)
+    {
+        if (u == null) return;
+        this.used = u.getUsed();
+        this.max = u.getMax() > 0 ? u.getMax() : Runtime.getRuntime().maxMemory();
+        if (old)
+        {
+            this.oldroom = (double)this.used / this.max < PAUSE_AT && this.max - this.used >= MIN_FREE;
+            this.oldsampled = System.nanoTime();
+        }
+    }
+
+    public synchronized Level check()
+    {
+        long used = this.used, max = this.max;
+        if (this.pool == null)
+        {
+            // Nothing better to go on than the whole heap, garbage included
+            Runtime runtime = Runtime.getRuntime();
+            used = runtime.totalMemory() - runtime.freeMemory();
+            max = runtime.maxMemory();
+        }
+        else if (!this.notified)
+        {
+            // No notifications (older JVMs), so ask. Some collectors only
+            // update this after a full collection, so it's a poor second.
+            this.sample(this.pool.getCollectionUsage(), true);
+            used = this.used;
+            max = this.max;
+        }
+
+        long now = System.nanoTime();
+        double pct = (double)used / max;
+        boolean full = max - used < MIN_FREE;
+        boolean over = pct >= (this.paused ? RESUME_AT : PAUSE_AT);
+        long sinceold = now - this.oldsampled;
+        if ((full || over) && this.paused && now - this.pausedsince > STALE
+            && (this.oldroom ? sinceold > STALE : sinceold > VERY_STALE))
+            return Level.SHRINK;
+        if (full || over)
+        {
+            if (!this.paused)
+                this.pausedsince = now;
+            this.paused = true;
+            return Level.PAUSE;
+        }
+        this.paused = false;
+        return pct >= SHRINK_AT ? Level.SHRINK : Level.OK;
+    }
+
+    // For status messages
+    public synchronized String describe()
+    {
+        long used = this.used, max = this.max;
+        String what = "of the old generation in use after the last GC";
+        if (this.pool == null)
+        {
+            Runtime runtime = Runtime.getRuntime();
+            used = runtime.totalMemory() - runtime.freeMemory();
+            max = runtime.maxMemory();
+            what = "memory in use";
+        }
+        return String.format("%.02f", 100 * (double)used / max) + "% " + what + ", "
+               + String.format("%.02f", (double)(max - used) / (1024 * 1024)) + "MiB free";
+    }
+}
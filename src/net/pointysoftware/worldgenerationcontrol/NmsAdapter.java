@@ -0,0 +1,387 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+// Everything we use from CraftBukkit and net.minecraft.server that Bukkit
+// doesn't give us, found once when the plugin is enabled and kept as method
+// handles, so nothing after that does any reflection. Nothing links against
+// CraftBukkit directly, so an unknown build just means the parts we couldn't
+// find are missing, see has*() and getMissing().
+//
+// Newer CraftBukkit builds put both CraftBukkit and minecraft in versioned
+// packages (org.bukkit.craftbukkit.v1_4_R1 and so on), we go by whatever
+// package the server is in.
+//
+// Handles are adapted to take and return Object, so they can be called
+// without the classes they're for.
+class NmsAdapter
+{
+    private final static MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+    private final static MethodType OBJECT_VOID = MethodType.methodType(void.class, Object.class);
+
+    private String version = "";
+    private ClassLoader loader;
+    private List<String> missing = new ArrayList<String>();
+
+    private MethodHandle worldhandle, chunkhandle;
+    private MethodHandle initlighting, relight;
+    private String relightname = null;
+    private MethodHandle ticklist, ticklistsize, tick;
+    private MethodHandle save, savelevel;
+    private MethodHandle chunkprovider, chunkloader, savechunk, savechunkentities, writechunk;
+    private Class<?> asyncsaver;
+    private MethodHandle closeregions;
+
+    private NmsAdapter() {}
+
+    public static NmsAdapter probe(Server server)
+    {
+        NmsAdapter nms = new NmsAdapter();
+        nms.loader = server.getClass().getClassLoader();
+        // org.bukkit.craftbukkit.CraftServer, or
+        // org.bukkit.craftbukkit.v1_4_R1.CraftServer
+        String pkg = server.getClass().getPackage() != null ? server.getClass().getPackage().getName() : "";
+        if (pkg.startsWith("org.bukkit.craftbukkit."))
+            nms.version = pkg.substring("org.bukkit.craftbukkit".length());
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> nmsworld = null, nmschunk = null;
+        try { nmsworld = nms.getNmsClass("World"); }
+        catch (Exception e) { nms.missing.add("minecraft World"); }
+        catch (LinkageError e) { nms.missing.add("minecraft World"); }
+        try { nmschunk = nms.getNmsClass("Chunk"); }
+        catch (Exception e) { nms.missing.add("minecraft Chunk"); }
+        catch (LinkageError e) { nms.missing.add("minecraft Chunk"); }
+
+        nms.worldhandle = nms.findGetHandle(lookup, "CraftWorld");
+        nms.chunkhandle = nms.findGetHandle(lookup, "CraftChunk");
+
+        if (nmschunk != null)
+        {
+            try { nms.initlighting = lookup.unreflect(nmschunk.getMethod("initLighting")).asType(OBJECT_VOID); }
+            catch (Exception e) { nms.missing.add("Chunk.initLighting"); }
+
+            // pre 1.0: h() calls i() (private) which relights all x/z columns
+            //          marked as needing full lighting
+            // Post 1.0: i() is public and calls k()
+            // 1.3+ This function is removed, but a new function, 'recheckGaps',
+            //      exists to reprocess lighting for the chunk, which is
+            //      obfuscated to private q()
+            for (String n:new String[] { "i", "k", "q" })
+            {
+                try
+                {
+                    Method m = nmschunk.getDeclaredMethod(n);
+                    if ((m.getModifiers() & Modifier.PRIVATE) == 0) continue;
+                    m.setAccessible(true); // bad touch!
+                    nms.relight = lookup.unreflect(m).asType(OBJECT_VOID);
+                    nms.relightname = n;
+                    break;
+                }
+                catch (Exception e) {} // various method not found exceptions
+            }
+            if (nms.relight == null)
+                nms.missing.add("Chunk lighting fix method");
+        }
+
+        if (nmsworld != null)
+        {
+            nms.findTickList(lookup, nmsworld);
+            // Process queued block updates, a(true) forces it
+            try { nms.tick = lookup.unreflect(nmsworld.getMethod("a", boolean.class)).asType(MethodType.methodType(void.class, Object.class, boolean.class)); }
+            catch (Exception e) { nms.missing.add("World.a(boolean)"); }
+        }
+
+        // save(boolean, IProgressUpdate) and saveLevel() are WorldServer's
+        try
+        {
+            Class<?> worldserver = nms.getNmsClass("WorldServer");
+            for (Method m:worldserver.getMethods())
+            {
+                Class<?>[] p = m.getParameterTypes();
+                if (m.getName().equals("save") && p.length == 2 && p[0] == boolean.class && !p[1].isPrimitive())
+                {
+                    nms.save = lookup.unreflect(m).asType(MethodType.methodType(void.class, Object.class, boolean.class, Object.class));
+                    break;
+                }
+            }
+            nms.savelevel = lookup.unreflect(worldserver.getMethod("saveLevel")).asType(OBJECT_VOID);
+        }
+        catch (Exception e) {}
+        catch (LinkageError e) {}
+        if (nms.save == null || nms.savelevel == null)
+        {
+            nms.save = null;
+            nms.missing.add("WorldServer.save");
+        }
+        if (nmschunk != null)
+            nms.findChunkSave(lookup, nmschunk);
+
+        // RegionFileCache.a() closes every region file the server has open,
+        // it opens them again as it needs them
+        try
+        {
+            Method m = nms.getNmsClass("RegionFileCache").getMethod("a");
+            if (!Modifier.isStatic(m.getModifiers()) || m.getReturnType() != void.class)
+                throw new NoSuchMethodException("RegionFileCache.a");
+            nms.closeregions = lookup.unreflect(m);
+        }
+        catch (Exception e) { nms.missing.add("RegionFileCache.a"); }
+        catch (LinkageError e) { nms.missing.add("RegionFileCache.a"); }
+        return nms;
+    }
+
+    // CraftFoo.getHandle(), returning the minecraft object behind it
+    private MethodHandle findGetHandle(MethodHandles.Lookup lookup, String craftclass)
+    {
+        try
+        {
+            Class<?> c = Class.forName("org.bukkit.craftbukkit" + this.version + "." + craftclass, true, this.loader);
+            return lookup.unreflect(c.getMethod("getHandle")).asType(OBJECT_GETTER);
+        }
+        catch (Exception e) {}
+        catch (LinkageError e) {}
+        this.missing.add(craftclass + ".getHandle");
+        return null;
+    }
+
+    // The list of pending block updates. Up to 1.2 it's a private TreeSet,
+    // whitelisted by name since no other TreeSets exist in World:
+    //   1.2.3 - H
+    //   b1.9p5 through 1.1 - K
+    //   b1.8.1 - N
+    // From 1.3.1 it's a protected "chunkTickList", CraftBukkit's LongHashset,
+    // which has its own size().
+    private void findTickList(MethodHandles.Lookup lookup, Class<?> nmsworld)
+    {
+        for (Field f:nmsworld.getDeclaredFields())
+        {
+            String n = f.getName();
+            boolean treeset = (n.equals("K") || n.equals("H") || n.equals("N")) && java.util.TreeSet.class.isAssignableFrom(f.getType());
+            if (!treeset && !n.equals("chunkTickList")) continue;
+            try
+            {
+                f.setAccessible(true);
+                this.ticklistsize = lookup.unreflect(f.getType().getMethod("size")).asType(MethodType.methodType(int.class, Object.class));
+                this.ticklist = lookup.unreflectGetter(f).asType(OBJECT_GETTER);
+                return;
+            }
+            catch (Exception e) { this.ticklistsize = null; }
+        }
+        this.missing.add("World tick list");
+    }
+
+    // Saving single chunks: WorldServer.chunkProviderServer.saveChunk(Chunk)
+    // (made public by CraftBukkit) hands a chunk to the chunk loader, which
+    // since b1.9 is a ChunkRegionLoader that queues it for FileIOThread.
+    // As an IAsyncChunkSaver its c() writes one queued chunk, false if there
+    // were none, which lets us write them now instead.
+    private void findChunkSave(MethodHandles.Lookup lookup, Class<?> nmschunk)
+    {
+        try
+        {
+            Class<?> provider = this.getNmsClass("ChunkProviderServer");
+            this.chunkprovider = lookup.unreflectGetter(this.getNmsClass("WorldServer").getField("chunkProviderServer")).asType(OBJECT_GETTER);
+            this.savechunk = lookup.unreflect(provider.getMethod("saveChunk", nmschunk)).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            // Entities are saved separately
+            try { this.savechunkentities = lookup.unreflect(provider.getMethod("saveChunkNOP", nmschunk)).asType(MethodType.methodType(void.class, Object.class, Object.class)); }
+            catch (Exception e) {}
+
+            Class<?> loader = this.getNmsClass("IChunkLoader");
+            for (Field f:provider.getDeclaredFields())
+            {
+                if (f.getType() != loader) continue;
+                f.setAccessible(true);
+                this.chunkloader = lookup.unreflectGetter(f).asType(OBJECT_GETTER);
+                break;
+            }
+            // Older chunk loaders write as they go
+            try
+            {
+                this.asyncsaver = this.getNmsClass("IAsyncChunkSaver");
+                this.writechunk = lookup.unreflect(this.asyncsaver.getMethod("c")).asType(MethodType.methodType(boolean.class, Object.class));
+            }
+            catch (Exception e) { this.asyncsaver = null; }
+            if (this.chunkloader == null)
+                throw new NoSuchFieldException("IChunkLoader");
+        }
+        catch (Exception e)
+        {
+            this.savechunk = null;
+            this.missing.add("ChunkProviderServer.saveChunk");
+        }
+        catch (LinkageError e)
+        {
+            this.savechunk = null;
+            this.missing.add("ChunkProviderServer.saveChunk");
+        }
+    }
+
+    public Class<?> getNmsClass(String name) throws ClassNotFoundException
+    {
+        return Class.forName("net.minecraft.server" + this.version + "." + name, true, this.loader);
+    }
+
+    // Things we couldn't find, for telling the user
+    public List<String> getMissing() { return this.missing; }
+
+    public boolean hasHandles() { return this.worldhandle != null && this.chunkhandle != null; }
+    public boolean hasRelight() { return this.relight != null && this.initlighting != null && this.chunkhandle != null; }
+    // Which of the lighting fix methods we found. 1.3+ (q) doesn't initialize
+    // lighting on new chunks at all, so lighting has to be forced there.
+    public String getRelightName() { return this.relightname; }
+    public boolean hasChunkSave() { return this.savechunk != null && this.worldhandle != null && this.chunkhandle != null; }
+    public boolean hasCloseRegions() { return this.closeregions != null; }
+
+    // Throws ClassCastException if this isn't a CraftBukkit world
+    public Object getHandle(World world) throws Exception
+    {
+        if (this.worldhandle == null)
+            throw new UnsupportedOperationException("No CraftWorld.getHandle");
+        try { return (Object)this.worldhandle.invokeExact((Object)world); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+    public Object getHandle(Chunk chunk) throws Exception
+    {
+        if (this.chunkhandle == null)
+            throw new UnsupportedOperationException("No CraftChunk.getHandle");
+        try { return (Object)this.chunkhandle.invokeExact((Object)chunk); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    // initLighting 'resets' the lighting for a chunk, doing fast lighting on
+    // everything and marking them all as needing full lighting, which the fix
+    // method then does.
+    public void relight(Object rawchunk) throws Exception
+    {
+        if (!this.hasRelight())
+            throw new UnsupportedOperationException("No lighting fix method");
+        try
+        {
+            this.initlighting.invokeExact(rawchunk);
+            this.relight.invokeExact(rawchunk);
+        }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    // The world's tick list, or null if we don't know where it is. Per world,
+    // so look it up once.
+    public Object getTickList(Object rawworld)
+    {
+        if (this.ticklist == null) return null;
+        try { return (Object)this.ticklist.invokeExact(rawworld); }
+        catch (Throwable t) { return null; }
+    }
+    public int getTickListSize(Object list) throws Exception
+    {
+        try { return (int)this.ticklistsize.invokeExact(list); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+    // Process a batch of queued block updates now
+    public void tick(Object rawworld) throws Exception
+    {
+        if (this.tick == null)
+            throw new UnsupportedOperationException("No World.a(boolean)");
+        try { this.tick.invokeExact(rawworld, true); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    public void save(Object rawworld) throws Exception
+    {
+        if (this.save == null)
+            throw new UnsupportedOperationException("No WorldServer.save");
+        try
+        {
+            this.save.invokeExact(rawworld, true, (Object)null);
+            this.savelevel.invokeExact(rawworld);
+        }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    // Per world, so look these up once
+    public Object getChunkProvider(Object rawworld) throws Exception
+    {
+        if (this.savechunk == null)
+            throw new UnsupportedOperationException("No ChunkProviderServer.saveChunk");
+        try { return (Object)this.chunkprovider.invokeExact(rawworld); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+    public Object getChunkLoader(Object provider) throws Exception
+    {
+        try { return (Object)this.chunkloader.invokeExact(provider); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+    // Hand a chunk to the chunk loader, which may only queue it
+    public void saveChunk(Object provider, Object rawchunk) throws Exception
+    {
+        try
+        {
+            this.savechunk.invokeExact(provider, rawchunk);
+            if (this.savechunkentities != null)
+                this.savechunkentities.invokeExact(provider, rawchunk);
+        }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+    // Write everything the chunk loader has queued, returns how many
+    public int writeChunks(Object loader) throws Exception
+    {
+        if (this.writechunk == null || !this.asyncsaver.isInstance(loader))
+            return 0;
+        int n = 0;
+        try
+        {
+            while ((boolean)this.writechunk.invokeExact(loader))
+                n++;
+        }
+        catch (Throwable t) { throw rethrow(t); }
+        return n;
+    }
+
+    // Have the server close all its region files, so they can be replaced
+    public void closeRegionFiles() throws Exception
+    {
+        if (this.closeregions == null)
+            throw new UnsupportedOperationException("No RegionFileCache.a");
+        try { this.closeregions.invokeExact(); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    private static Exception rethrow(Throwable t)
+    {
+        if (t instanceof Error) throw (Error)t;
+        if (t instanceof Exception) return (Exception)t;
+        return new RuntimeException(t);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Where players are headed, for /genfollow. Keeps a smoothed velocity for
+// each player from where they were on each update, and looks along that
+// heading for the chunks they'll need that don't exist yet, soonest first.
+//
+// A player needs every chunk within radius (their view distance) of where
+// they are, so a chunk is due when that circle first reaches it. Positions
+// and velocities are in blocks, radius and everything handed out in chunks.
+class PlayerPredictor
+{
+    // Whether a chunk already exists, or is already being taken care of
+    interface Chunks
+    {
+        boolean exists(int x, int z);
+    }
+
+    // Slower than this (blocks a second) is standing around, faster is a
+    // teleport rather than movement
+    private final static double MIN_SPEED = 1;
+    private final static double MAX_SPEED = 100;
+    // Weight of the newest velocity sample, so a turn shows up within a
+    // couple of seconds without every wobble throwing the prediction off
+    private final static double SMOOTHING = 0.3;
+    // Blocks between the points looked at along a path
+    private final static double SPACING = 32;
+
+    private static class Track
+    {
+        double x, z, vx, vz;
+        long seen;
+    }
+
+    private HashMap<String, Track> tracks = new HashMap<String, Track>();
+    private double lookahead;
+    private int radius;
+
+    PlayerPredictor(double lookahead, int radius)
+    {
+        this.lookahead = lookahead;
+        this.radius = radius;
+    }
+
+    public int getPlayerCount() { return this.tracks.size(); }
+
+    // positions are {x, z} by player name, now from System.nanoTime().
+    // Players that are gone are forgotten.
+    public void update(Map<String, double[]> positions, long now)
+    {
+        Iterator<Map.Entry<String, Track>> i = this.tracks.entrySet().iterator();
+        while (i.hasNext())
+            if (!positions.containsKey(i.next().getKey()))
+                i.remove();
+
+        for (Map.Entry<String, double[]> e:positions.entrySet())
+        {
+            double x = e.getValue()[0], z = e.getValue()[1];
+            Track t = this.tracks.get(e.getKey());
+            if (t == null)
+            {
+                t = new Track();
+                this.tracks.put(e.getKey(), t);
+            }
+            else if (now > t.seen)
+            {
+                double secs = (double)(now - t.seen) / 1000000000L;
+                double vx = (x - t.x) / secs, vz = (z - t.z) / secs;
+                if (Math.hypot(vx, vz) > MAX_SPEED)
+                {
+                    t.vx = 0;
+                    t.vz = 0;
+                }
+                else
+                {
+                    t.vx += SMOOTHING * (vx - t.vx);
+                    t.vz += SMOOTHING * (vz - t.vz);
+                }
+            }
+            else
+                continue;
+            t.x = x;
+            t.z = z;
+            t.seen = now;
+        }
+    }
+
+    // Find the chunk that doesn't exist yet which someone will need soonest,
+    // within lookahead seconds, and put it in at as {x, z, dx, dz}, where dx
+    // and dz are -1, 0 or 1 for which way whoever needs it is going. Returns
+    // how many seconds away it is, or -1 if everything they're headed for
+    // exists.
+    public double next(Chunks chunks, int[] at)
+    {
+        double best = -1;
+        for (Track t:this.tracks.values())
+        {
+            double speed = Math.hypot(t.vx, t.vz);
+            int steps = speed < MIN_SPEED ? 0 : (int)Math.ceil(speed * this.lookahead / SPACING);
+            for (int i = 0; i <= steps; i++)
+            {
+                double secs = steps > 0 ? this.lookahead * i / steps : 0;
+                if (best >= 0 && secs >= best)
+                    break;
+                int cx = (int)Math.floor((t.x + t.vx * secs) / 16);
+                int cz = (int)Math.floor((t.z + t.vz * secs) / 16);
+                if (this.findMissing(chunks, cx, cz, at))
+                {
+                    at[2] = speed < MIN_SPEED ? 0 : (int)Math.round(t.vx / speed);
+                    at[3] = speed < MIN_SPEED ? 0 : (int)Math.round(t.vz / speed);
+                    best = secs;
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    // Whether chunks x1, z1 - x2, z2 overlap anywhere next() might look for
+    // someone: within radius of where they'll be over the next lookahead
+    // seconds, as far as we know which way they're going
+    public boolean reaches(int x1, int z1, int x2, int z2)
+    {
+        for (Track t:this.tracks.values())
+        {
+            double ex = t.x + t.vx * this.lookahead, ez = t.z + t.vz * this.lookahead;
+            if (x2 >= (int)Math.floor(Math.min(t.x, ex) / 16) - this.radius && x1 <= (int)Math.floor(Math.max(t.x, ex) / 16) + this.radius
+                && z2 >= (int)Math.floor(Math.min(t.z, ez) / 16) - this.radius && z1 <= (int)Math.floor(Math.max(t.z, ez) / 16) + this.radius)
+                return true;
+        }
+        return false;
+    }
+
+    // Nearest chunk within radius of x, z that doesn't exist, ring by ring
+    private boolean findMissing(Chunks chunks, int x, int z, int[] at)
+    {
+        int r2 = this.radius * this.radius;
+        for (int d = 0; d <= this.radius; d++)
+            for (int dz = -d; dz <= d; dz++)
+            {
+                // The whole row on the top and bottom of the ring, just the
+                // ends in between
+                int step = (dz == -d || dz == d) ? 1 : Math.max(1, 2 * d);
+                for (int dx = -d; dx <= d; dx += step)
+                {
+                    if (dx * dx + dz * dz > r2 || chunks.exists(x + dx, z + dz))
+                        continue;
+                    at[0] = x + dx;
+                    at[1] = z + dz;
+                    return true;
+                }
+            }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finds out which chunks of a world already exist by reading the location
+// tables at the start of its region files, rather than having the server load
+// every chunk to find out. Meant to be run off the main thread, see run().
+//
+// Each region file holds 32x32 chunks, and starts with a 4KiB table of one
+// int per chunk: a 3 byte sector offset and a 1 byte sector count, all zero
+// if the chunk has never been saved.
+class RegionFileScanner implements Runnable
+{
+    public final static int SECTOR_SIZE = 4096;
+    private final static int HEADER_SIZE = 4096;
+    private final static Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.(mca|mcr)");
+
+    private File regiondir;
+    // Region (not chunk) coordinates to look at, inclusive
+    private int rx1, rz1, rx2, rz2;
+    private ChunkBitSet existing = new ChunkBitSet();
+    private volatile boolean done = false;
+    private volatile String error = null;
+    private int scannedfiles = 0;
+
+    // Bounds are in chunk coordinates
+    RegionFileScanner(File regiondir, int xStart, int zStart, int xEnd, int zEnd)
+    {
+        this.regiondir = regiondir;
+        this.rx1 = xStart >> 5;
+        this.rz1 = zStart >> 5;
+        this.rx2 = xEnd >> 5;
+        this.rz2 = zEnd >> 5;
+    }
+
+    // True once run() has finished, after which isGenerated is accurate as of
+    // when the scan ran.
+    public boolean isDone() { return this.done; }
+    public String getError() { return this.error; }
+    public int getScannedFiles() { return this.scannedfiles; }
+    public int getExistingCount() { return this.existing.size(); }
+
+    // Whether the chunk was saved to disk when we scanned. Chunks only
+    // in memory, or from files we couldn't read, show as not generated.
+    public boolean isGenerated(int x, int z)
+    {
+        return this.done && this.existing.get(x, z);
+    }
+
+    public void run()
+    {
+        try
+        {
+            if (this.regiondir != null)
+                this.scan();
+        }
+        catch (Exception e)
+        {
+            this.error = e.toString();
+        }
+        finally
+        {
+            this.done = true;
+        }
+    }
+
+    private void scan()
+    {
+        // List the directory once instead of poking at every possible file
+        // name, since huge jobs cover hundreds of thousands of them
+        String[] names = this.regiondir.list();
+        if (names == null) return;
+
+        // Worlds converted to anvil keep their old .mcr files around, which
+        // are then stale
+        boolean anvil = false;
+        for (String name:names)
+            if (name.endsWith(".mca")) { anvil = true; break; }
+        String ext = anvil ? "mca" : "mcr";
+
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        for (String name:names)
+        {
+            Matcher m = REGION_NAME.matcher(name);
+            if (!m.matches() || !m.group(3).equals(ext)) continue;
+            int rx, rz;
+            try
+            {
+                rx = Integer.parseInt(m.group(1));
+                rz = Integer.parseInt(m.group(2));
+            }
+            catch (NumberFormatException e) { continue; }
+            if (rx < this.rx1 || rx > this.rx2 || rz < this.rz1 || rz > this.rz2) continue;
+
+            try
+            {
+                long[] page = readHeader(new File(this.regiondir, name), header);
+                if (page != null)
+                    this.existing.setPage(rx, rz, page);
+                this.scannedfiles++;
+            }
+            catch (IOException e)
+            {
+                // Treat it as empty, those chunks just get loaded normally
+            }
+        }
+    }
+
+    // How many sectors each chunk of region file rx, rz takes up, indexed by
+    // x + z * 32 within it. All zero if there's no such file or we couldn't
+    // read it.
+    public static byte[] readSectorCounts(File regiondir, int rx, int rz)
+    {
+        byte[] counts = new byte[1024];
+        File file = findFile(regiondir, rx, rz);
+        if (file == null) return counts;
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (read(file, header))
+                for (int i = 0; i < 1024; i++)
+                    counts[i] = header.get(i * 4 + 3);
+        }
+        catch (IOException e) {}
+        return counts;
+    }
+
+    // The chunks saved in region file rx, rz, as a ChunkBitSet page, or null
+    // if there's no such file or we couldn't read it
+    public static long[] readExisting(File regiondir, int rx, int rz)
+    {
+        File file = findFile(regiondir, rx, rz);
+        if (file == null) return null;
+        try { return readHeader(file, ByteBuffer.allocate(HEADER_SIZE)); }
+        catch (IOException e) { return null; }
+    }
+
+    // Anvil if there's one, or null if there's neither
+    private static File findFile(File regiondir, int rx, int rz)
+    {
+        if (regiondir == null) return null;
+        File file = new File(regiondir, "r." + rx + "." + rz + ".mca");
+        if (!file.exists())
+            file = new File(regiondir, "r." + rx + "." + rz + ".mcr");
+        return file.exists() ? file : null;
+    }
+
+    // Fill header from the start of file, false if it's too short
+    private static boolean read(File file, ByteBuffer header) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+            return header.position() == HEADER_SIZE;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static long[] readHeader(File file, ByteBuffer header) throws IOException
+    {
+        if (!read(file, header)) return null;
+        long[] page = new long[ChunkBitSet.PAGE_LONGS];
+        for (int i = 0; i < 1024; i++)
+            if (header.getInt(i * 4) != 0)
+                page[i >> 6] |= 1L << (i & 63);
+        return page;
+    }
+}
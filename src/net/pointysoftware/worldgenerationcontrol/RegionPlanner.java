@@ -0,0 +1,564 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Hands out the regions of a generation one at a time, instead of building
+// them all up front. All state is a handful of ints, so a 100k radius circle
+// costs the same to set up as a 100 block one. Regions are laid out over the
+// bounding box of a Shape, and regions with none of it in them are skipped.
+//
+// Adjacent regions overlap by OVERLAP chunks so block populators and lighting
+// can run on the chunks between them, so regions are laid out on a grid with
+// a stride of (regionsize - OVERLAP). The Traversal picks the order the grid
+// is walked in.
+//
+// All values are in *chunk coordinates*
+abstract class RegionPlanner
+{
+    public final static int OVERLAP = 2;
+
+    public enum Traversal
+    {
+        // Left to right, then back to the left side for the next row. The
+        // original order.
+        ROWS,
+        // Left to right, then right to left, so the next region is always
+        // next to the last one.
+        SERPENTINE,
+        // Outward from the center, so the middle is usable early and the job
+        // can be cancelled at any radius.
+        SPIRAL,
+        // Finish each 32x32 region file before moving on to the next, so the
+        // server only has a few of them open and dirty at once.
+        REGIONFILE
+    }
+
+    protected final Shape shape;
+    protected final int xStart, zStart, xEnd, zEnd;
+    protected boolean finished = false;
+    // Grid cells passed, including ones skipped for being outside the shape
+    protected int passed = 0;
+    // The current region, valid after next() returns true
+    protected int x1, z1, x2, z2;
+
+    public static RegionPlanner create(Traversal order, Shape shape, int regionsize)
+    {
+        if (order == Traversal.SPIRAL || order == Traversal.REGIONFILE)
+            return new Grid(order, shape, regionsize);
+        return new Rows(order == Traversal.SERPENTINE, shape, regionsize);
+    }
+
+    protected RegionPlanner(Shape shape)
+    {
+        this.shape = shape;
+        this.xStart = shape.getXStart();
+        this.zStart = shape.getZStart();
+        this.xEnd = shape.getXEnd();
+        this.zEnd = shape.getZEnd();
+    }
+
+    public int getXStart() { return this.xStart; }
+    public int getZStart() { return this.zStart; }
+    public int getXEnd() { return this.xEnd; }
+    public int getZEnd() { return this.zEnd; }
+    public int getX1() { return this.x1; }
+    public int getZ1() { return this.z1; }
+    public int getX2() { return this.x2; }
+    public int getZ2() { return this.z2; }
+    public Shape getShape() { return this.shape; }
+
+    public void cancel() { this.finished = true; }
+    public boolean isFinished() { return this.finished; }
+
+    // Number of chunks in the planned area
+    public int getSize() { return this.shape.getArea(); }
+
+    // Regions handed out or skipped so far
+    public int getPassed() { return this.passed; }
+
+    // Regions left, assuming the region size doesn't change again
+    public abstract int getRemaining();
+
+    // Ask for a different region size from here on. Returns false if this
+    // planner's layout is fixed.
+    public abstract boolean setRegionSize(int regionsize);
+    public abstract boolean isResizable();
+
+    // Size of regions being handed out right now
+    public abstract int getRegionSize();
+
+    // Advance to the next region that has chunks in it, returns false when
+    // there are none left.
+    public abstract boolean next();
+
+    // Whether no region after the current one reaches into chunks x1, z1 -
+    // x2, z2, so they're done with for good
+    public abstract boolean isBehind(int x1, int z1, int x2, int z2);
+
+    // Everything needed to pick up where we left off on a new planner for the
+    // same area. The current region is considered done.
+    public abstract int[] getState();
+    public abstract boolean setState(int[] state);
+
+    // Find the region next() will move to without moving there, putting its
+    // bounds in bounds[0..3] as x1, z1, x2, z2. Returns false if there is none.
+    // This is done every step, so it sets the state aside with mark() rather
+    // than getState(), which would allocate.
+    public boolean peek(int[] bounds)
+    {
+        boolean finished = this.finished;
+        int passed = this.passed;
+        int x1 = this.x1, z1 = this.z1, x2 = this.x2, z2 = this.z2;
+        this.mark();
+
+        boolean found = this.next();
+        bounds[0] = this.x1;
+        bounds[1] = this.z1;
+        bounds[2] = this.x2;
+        bounds[3] = this.z2;
+
+        this.reset();
+        this.finished = finished;
+        this.passed = passed;
+        this.x1 = x1; this.z1 = z1; this.x2 = x2; this.z2 = z2;
+        return found;
+    }
+
+    // Set aside the rest of what next() changes, for peek, and put it back
+    protected abstract void mark();
+    protected abstract void reset();
+
+    // Number of overlapping regions of size needed to cover length chunks
+    protected static int cells(int length, int size)
+    {
+        if (length <= size) return 1;
+        int stride = size - OVERLAP;
+        return 1 + (length - size + stride - 1) / stride;
+    }
+
+    // ROWS and SERPENTINE. Region i of a row starts at xStart + i * stride.
+    // The region size can be changed while running, but only takes effect at
+    // the start of the next row, so the rows still overlap properly.
+    static class Rows extends RegionPlanner
+    {
+        private boolean serpentine;
+        // Size to use for the next row
+        private int regionsize;
+        // Current row. Columns are counted in the order they're visited.
+        private int rowsize, rowZ1, rowZ2, col, lastcol, rownum;
+        private boolean started = false;
+        // Columns of the current row the shape reaches, as first, last pairs
+        // in the order they're visited. Worked out again from the row when
+        // restoring state, so not part of it.
+        private int[] ranges;
+        private int range;
+        // What mark() set aside. The columns are kept rather than worked out
+        // again, so peeking doesn't allocate unless it starts a new row.
+        private int[] marked = new int[7];
+        private int[] markedranges;
+        private boolean markedstarted;
+
+        Rows(boolean serpentine, Shape shape, int regionsize)
+        {
+            super(shape);
+            this.serpentine = serpentine;
+            this.regionsize = regionsize;
+        }
+
+        public boolean setRegionSize(int regionsize) { this.regionsize = regionsize; return true; }
+        public boolean isResizable() { return true; }
+        public int getRegionSize() { return this.started ? this.rowsize : this.regionsize; }
+
+        public int getRemaining()
+        {
+            if (this.finished) return 0;
+            if (!this.started)
+                return cells(this.xEnd - this.xStart + 1, this.regionsize) * cells(this.zEnd - this.zStart + 1, this.regionsize);
+            int rest = this.lastcol - this.col + 1;
+            if (this.rowZ2 < this.zEnd)
+                rest += cells(this.xEnd - this.xStart + 1, this.regionsize) * cells(this.zEnd - (this.rowZ2 + 1 - OVERLAP) + 1, this.regionsize);
+            return rest;
+        }
+
+        // Rows only ever move down (+z), and the next starts on this one's
+        // last rows
+        public boolean isBehind(int x1, int z1, int x2, int z2)
+        {
+            if (this.finished) return true;
+            return this.started && z2 < this.rowZ1;
+        }
+
+        public int[] getState()
+        {
+            return new int[] { this.serpentine ? 1 : 0, this.regionsize, this.rowsize, this.rowZ1, this.rowZ2, this.col, this.lastcol,
+                               this.rownum, this.started ? 1 : 0, this.finished ? 1 : 0, this.passed };
+        }
+        public boolean setState(int[] state)
+        {
+            if (state.length != 11 || state[0] != (this.serpentine ? 1 : 0) || state[1] <= OVERLAP || (state[8] != 0 && state[2] <= OVERLAP))
+                return false;
+            this.regionsize = state[1];
+            this.rowsize = state[2];
+            this.rowZ1 = state[3];
+            this.rowZ2 = state[4];
+            this.col = state[5];
+            this.lastcol = state[6];
+            this.rownum = state[7];
+            this.started = state[8] != 0;
+            this.finished = state[9] != 0;
+            this.passed = state[10];
+            if (this.started)
+                this.findColumns();
+            return true;
+        }
+
+        protected void mark()
+        {
+            int[] m = this.marked;
+            m[0] = this.rowsize; m[1] = this.rowZ1; m[2] = this.rowZ2; m[3] = this.col;
+            m[4] = this.lastcol; m[5] = this.rownum; m[6] = this.range;
+            this.markedranges = this.ranges;
+            this.markedstarted = this.started;
+        }
+        protected void reset()
+        {
+            int[] m = this.marked;
+            this.rowsize = m[0]; this.rowZ1 = m[1]; this.rowZ2 = m[2]; this.col = m[3];
+            this.lastcol = m[4]; this.rownum = m[5]; this.range = m[6];
+            this.ranges = this.markedranges;
+            this.started = this.markedstarted;
+        }
+
+        public boolean next()
+        {
+            while (!this.finished)
+            {
+                if (!this.started || this.col > this.lastcol)
+                {
+                    if (!this.nextRow())
+                        break;
+                    continue;
+                }
+
+                // Skip ahead to the next columns the shape reaches
+                while (this.range < this.ranges.length && this.ranges[this.range + 1] < this.col)
+                    this.range += 2;
+                if (this.range >= this.ranges.length)
+                {
+                    this.passed += this.lastcol - this.col + 1;
+                    this.col = this.lastcol + 1;
+                    continue;
+                }
+                if (this.ranges[this.range] > this.col)
+                {
+                    this.passed += this.ranges[this.range] - this.col;
+                    this.col = this.ranges[this.range];
+                }
+
+                int stride = this.rowsize - OVERLAP;
+                int c = this.col++;
+                // Odd rows run backwards in serpentine mode
+                if (this.serpentine && (this.rownum & 1) == 1)
+                    c = cells(this.xEnd - this.xStart + 1, this.rowsize) - 1 - c;
+                this.passed++;
+                this.x1 = this.xStart + c * stride;
+                this.x2 = Math.min(this.x1 + this.rowsize - 1, this.xEnd);
+                this.z1 = this.rowZ1;
+                this.z2 = this.rowZ2;
+                return true;
+            }
+            this.finished = true;
+            return false;
+        }
+
+        private boolean nextRow()
+        {
+            if (this.started && this.rowZ2 >= this.zEnd)
+                return false;
+
+            // The rest of the previous row, skipped for being outside the shape
+            if (this.started)
+            {
+                this.passed += this.lastcol - this.col + 1;
+                this.rownum++;
+            }
+
+            this.rowZ1 = this.started ? this.rowZ2 + 1 - OVERLAP : this.zStart;
+            this.started = true;
+            this.rowsize = this.regionsize;
+            this.rowZ2 = Math.min(this.rowZ1 + this.rowsize - 1, this.zEnd);
+            this.col = 0;
+            int columns = cells(this.xEnd - this.xStart + 1, this.rowsize);
+            this.lastcol = columns - 1;
+
+            this.findColumns();
+            return true;
+        }
+
+        // Only visit the columns the shape reaches in this row, so big circles
+        // don't crawl through their empty corners, nor rings through their
+        // middle
+        private void findColumns()
+        {
+            int columns = this.lastcol + 1;
+            int stride = this.rowsize - OVERLAP;
+            int[] spans = this.shape.getSpans(this.rowZ1, this.rowZ2);
+            int[] found = new int[spans.length];
+            int n = 0;
+            for (int i = 0; i < spans.length; i += 2)
+            {
+                int first = spans[i] - (this.xStart + this.rowsize - 1);
+                first = first <= 0 ? 0 : (first + stride - 1) / stride;
+                int last = spans[i + 1] - this.xStart;
+                last = last < 0 ? -1 : Math.min(last / stride, columns - 1);
+                if (first > last)
+                    continue;
+                if (n > 0 && first <= found[n - 1] + 1)
+                    found[n - 1] = Math.max(found[n - 1], last);
+                else
+                {
+                    found[n++] = first;
+                    found[n++] = last;
+                }
+            }
+            this.ranges = new int[n];
+            for (int i = 0; i < n; i += 2)
+            {
+                if (this.serpentine && (this.rownum & 1) == 1)
+                {
+                    // Counted from the right hand side
+                    this.ranges[n - 2 - i] = columns - 1 - found[i + 1];
+                    this.ranges[n - 1 - i] = columns - 1 - found[i];
+                }
+                else
+                {
+                    this.ranges[i] = found[i];
+                    this.ranges[i + 1] = found[i + 1];
+                }
+            }
+            this.range = 0;
+        }
+    }
+
+    // SPIRAL and REGIONFILE walk a grid that is fixed when the job starts, so
+    // these ignore region size changes.
+    static class Grid extends RegionPlanner
+    {
+        private final static int TILE = 32;
+
+        private Traversal order;
+        private int regionsize, stride;
+        // Unclipped x1/z1 of cell 0, 0 and number of cells each way
+        private int gx0, gz0, nx, nz;
+        // Center cell, for SPIRAL
+        private int ci, cj;
+        // SPIRAL: a is the ring, b the position along it
+        // REGIONFILE: a, b is the tile, c, d the cell within it
+        private int a, b, c, d;
+        private boolean started = false;
+        // What mark() set aside
+        private int[] marked = new int[4];
+        private boolean markedstarted;
+
+        Grid(Traversal order, Shape shape, int regionsize)
+        {
+            super(shape);
+            this.order = order;
+            if (order == Traversal.REGIONFILE)
+            {
+                // Pick a stride that divides a region file evenly, and line the
+                // grid up so each region's inner (non-edge) chunks are all in
+                // one file. Edges spill one chunk into the neighbors.
+                this.stride = regionsize >= 18 ? 16 : regionsize >= 10 ? 8 : 4;
+                this.regionsize = this.stride + OVERLAP;
+                this.gx0 = xStart - floorMod(xStart + 1, this.stride);
+                this.gz0 = zStart - floorMod(zStart + 1, this.stride);
+            }
+            else
+            {
+                this.regionsize = regionsize;
+                this.stride = regionsize - OVERLAP;
+                this.gx0 = xStart;
+                this.gz0 = zStart;
+            }
+            this.nx = 1 + Math.max(0, xEnd - (this.gx0 + this.regionsize - 1) + this.stride - 1) / this.stride;
+            this.nz = 1 + Math.max(0, zEnd - (this.gz0 + this.regionsize - 1) + this.stride - 1) / this.stride;
+            this.ci = Math.max(0, Math.min(this.nx - 1, floorDiv(shape.getXCenter() - this.gx0, this.stride)));
+            this.cj = Math.max(0, Math.min(this.nz - 1, floorDiv(shape.getZCenter() - this.gz0, this.stride)));
+        }
+
+        private static int floorDiv(int a, int b) { return a >= 0 ? a / b : -((-a + b - 1) / b); }
+        private static int floorMod(int a, int b) { return a - floorDiv(a, b) * b; }
+
+        public boolean setRegionSize(int regionsize) { return false; }
+        public boolean isResizable() { return false; }
+        public int getRegionSize() { return this.regionsize; }
+        public int getRemaining() { return this.finished ? 0 : this.nx * this.nz - this.passed; }
+
+        public boolean isBehind(int x1, int z1, int x2, int z2)
+        {
+            if (this.finished) return true;
+            if (!this.started) return false;
+            if (this.order == Traversal.SPIRAL)
+            {
+                // Inside the rings already done, clear of every cell on this
+                // ring or further out. nextSpiral has moved on to ring 1
+                // once it hands out the center.
+                int ring = this.a == 1 && this.b == 0 ? 0 : this.a;
+                return x1 > this.gx0 + (this.ci - ring) * this.stride + this.regionsize - 1 && x2 < this.gx0 + (this.ci + ring) * this.stride
+                       && z1 > this.gz0 + (this.cj - ring) * this.stride + this.regionsize - 1 && z2 < this.gz0 + (this.cj + ring) * this.stride;
+            }
+            // Above the first cell of this row of tiles
+            int j0 = floorDiv((floorDiv(this.gz0 + 1, TILE) + this.b) * TILE - (this.gz0 + 1), this.stride);
+            return z2 < this.gz0 + j0 * this.stride;
+        }
+
+        public int[] getState()
+        {
+            return new int[] { this.order.ordinal(), this.regionsize, this.a, this.b, this.c, this.d,
+                               this.started ? 1 : 0, this.finished ? 1 : 0, this.passed };
+        }
+        public boolean setState(int[] state)
+        {
+            if (state.length != 9 || state[0] != this.order.ordinal() || state[1] != this.regionsize)
+                return false;
+            this.a = state[2];
+            this.b = state[3];
+            this.c = state[4];
+            this.d = state[5];
+            this.started = state[6] != 0;
+            this.finished = state[7] != 0;
+            this.passed = state[8];
+            return true;
+        }
+
+        protected void mark()
+        {
+            this.marked[0] = this.a; this.marked[1] = this.b; this.marked[2] = this.c; this.marked[3] = this.d;
+            this.markedstarted = this.started;
+        }
+        protected void reset()
+        {
+            this.a = this.marked[0]; this.b = this.marked[1]; this.c = this.marked[2]; this.d = this.marked[3];
+            this.started = this.markedstarted;
+        }
+
+        public boolean next()
+        {
+            while (!this.finished)
+            {
+                int cell = this.order == Traversal.SPIRAL ? this.nextSpiral() : this.nextTile();
+                if (cell < 0)
+                    break;
+                int i = cell % this.nx, j = cell / this.nx;
+                this.passed++;
+                this.x1 = Math.max(this.gx0 + i * this.stride, this.xStart);
+                this.x2 = Math.min(this.gx0 + i * this.stride + this.regionsize - 1, this.xEnd);
+                this.z1 = Math.max(this.gz0 + j * this.stride, this.zStart);
+                this.z2 = Math.min(this.gz0 + j * this.stride + this.regionsize - 1, this.zEnd);
+                if (this.shape.intersects(this.x1, this.z1, this.x2, this.z2))
+                    return true;
+            }
+            this.finished = true;
+            return false;
+        }
+
+        // Cell index (i + j * nx) of the next cell on the grid, or -1
+        private int nextSpiral()
+        {
+            int maxring = Math.max(Math.max(this.ci, this.nx - 1 - this.ci), Math.max(this.cj, this.nz - 1 - this.cj));
+            if (!this.started)
+            {
+                this.started = true;
+                this.a = 0;
+                this.b = 0;
+            }
+            while (this.a <= maxring)
+            {
+                int ring = this.a;
+                if (ring == 0)
+                {
+                    this.a = 1;
+                    this.b = 0;
+                    return this.ci + this.cj * this.nx;
+                }
+                while (this.b < 8 * ring)
+                {
+                    int p = this.b++;
+                    int side = p / (2 * ring), along = p % (2 * ring);
+                    int i, j;
+                    if (side == 0)      { i = this.ci - ring + along; j = this.cj - ring; }
+                    else if (side == 1) { i = this.ci + ring; j = this.cj - ring + along; }
+                    else if (side == 2) { i = this.ci + ring - along; j = this.cj + ring; }
+                    else                { i = this.ci - ring; j = this.cj + ring - along; }
+                    if (i >= 0 && j >= 0 && i < this.nx && j < this.nz)
+                        return i + j * this.nx;
+                }
+                this.a++;
+                this.b = 0;
+            }
+            return -1;
+        }
+
+        // Cell index of the next cell, a region file at a time. Tiles are
+        // walked in serpentine order.
+        private int nextTile()
+        {
+            int per = TILE / this.stride;
+            // Inner chunks of cell i start at gx0 + 1 + i * stride, which is a
+            // multiple of stride, so cell i is in tile (gx0 + 1 + i * stride) / TILE
+            int tx0 = floorDiv(this.gx0 + 1, TILE), tz0 = floorDiv(this.gz0 + 1, TILE);
+            int ntx = floorDiv(this.gx0 + 1 + (this.nx - 1) * this.stride, TILE) - tx0 + 1;
+            int ntz = floorDiv(this.gz0 + 1 + (this.nz - 1) * this.stride, TILE) - tz0 + 1;
+            if (!this.started)
+            {
+                this.started = true;
+                this.a = this.b = this.c = this.d = 0;
+            }
+            while (this.b < ntz)
+            {
+                int tx = (this.b & 1) == 1 ? ntx - 1 - this.a : this.a;
+                // First cell in this tile, may be negative for the first tile
+                int i0 = floorDiv((tx0 + tx) * TILE - (this.gx0 + 1), this.stride);
+                int j0 = floorDiv((tz0 + this.b) * TILE - (this.gz0 + 1), this.stride);
+                while (this.d < per)
+                {
+                    int i = i0 + this.c, j = j0 + this.d;
+                    if (++this.c >= per)
+                    {
+                        this.c = 0;
+                        this.d++;
+                    }
+                    if (i >= 0 && j >= 0 && i < this.nx && j < this.nz)
+                        return i + j * this.nx;
+                }
+                this.c = this.d = 0;
+                if (++this.a >= ntx)
+                {
+                    this.a = 0;
+                    this.b++;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// A copy of the region files a /destroyAndRegenerateArea generation is about
+// to overwrite, so /genrestore can put them back. Only the files the area
+// touches are copied, so it takes as long as the area needs, not the world.
+// Copying is meant to be run off the main thread, see run().
+//
+// Hard links would be cheaper, but no use: the server rewrites region files
+// in place, so a link would change right along with the original. Copies go
+// through FileChannel.transferTo, which leaves moving the data to the OS.
+// The server can still write a file while we copy it, so each copy's header
+// is checked against what actually got copied, and a torn one is copied
+// again.
+//
+// A snapshot is a folder with the copies and a snapshot.txt, written last,
+// so a folder without one is a snapshot that never finished:
+//   world <name>
+//   folder <region folder>
+//   region <rx> <rz> [file...]   one per region covered, with the files it had
+class RegionSnapshot implements Runnable
+{
+    private final static String MANIFEST = "snapshot.txt";
+    private final static String[] EXTENSIONS = { "mca", "mcr" };
+    private final static int SECTOR = 4096;
+    // Copies of a file that's being written to before giving up on it
+    private final static int ATTEMPTS = 5;
+
+    private static class Region
+    {
+        int x, z;
+        List<String> files = new ArrayList<String>();
+        Region(int x, int z) { this.x = x; this.z = z; }
+    }
+
+    private File folder, regiondir;
+    private String world;
+    private List<Region> regions = new ArrayList<Region>();
+    private long bytes = 0;
+    private int files = 0;
+    private volatile boolean done = false;
+    private volatile String error = null;
+
+    // regions are region (not chunk) coordinates, as {x, z}
+    RegionSnapshot(File folder, String world, File regiondir, Collection<int[]> regions)
+    {
+        this.folder = folder;
+        this.world = world;
+        this.regiondir = regiondir;
+        for (int[] r:regions)
+            this.regions.add(new Region(r[0], r[1]));
+    }
+
+    private RegionSnapshot(File folder)
+    {
+        this.folder = folder;
+        this.done = true;
+    }
+
+    public boolean isDone() { return this.done; }
+    public String getError() { return this.error; }
+    public String getWorld() { return this.world; }
+    public File getFolder() { return this.folder; }
+    public File getRegionFolder() { return this.regiondir; }
+    public int getRegionCount() { return this.regions.size(); }
+    public int getFileCount() { return this.files; }
+    public long getBytes() { return this.bytes; }
+
+    // Whether region file rx, rz is one of ours
+    public boolean covers(int rx, int rz)
+    {
+        for (Region r:this.regions)
+            if (r.x == rx && r.z == rz)
+                return true;
+        return false;
+    }
+
+    public void run()
+    {
+        try
+        {
+            this.take();
+        }
+        catch (Exception e)
+        {
+            this.error = e.toString();
+        }
+        finally
+        {
+            this.done = true;
+        }
+    }
+
+    private void take() throws IOException
+    {
+        if (!this.folder.isDirectory() && !this.folder.mkdirs())
+            throw new IOException("Unable to create " + this.folder);
+        for (Region r:this.regions)
+            for (String ext:EXTENSIONS)
+            {
+                String name = "r." + r.x + "." + r.z + "." + ext;
+                File file = new File(this.regiondir, name);
+                if (!file.exists()) continue;
+                File to = new File(this.folder, name);
+                for (int attempt = 1; ; attempt++)
+                {
+                    long size = copy(file, to);
+                    if (isConsistent(to))
+                    {
+                        this.bytes += size;
+                        break;
+                    }
+                    if (attempt == ATTEMPTS)
+                        throw new IOException(file + " kept changing while it was copied");
+                    try { Thread.sleep(200); }
+                    catch (InterruptedException e) { throw new IOException("Interrupted copying " + file); }
+                }
+                this.files++;
+                r.files.add(name);
+            }
+
+        File tmp = new File(this.folder, MANIFEST + ".tmp");
+        FileWriter out = new FileWriter(tmp);
+        try
+        {
+            out.write("world " + this.world + "\n");
+            out.write("folder " + this.regiondir.getAbsolutePath() + "\n");
+            for (Region r:this.regions)
+            {
+                out.write("region " + r.x + " " + r.z);
+                for (String name:r.files)
+                    out.write(" " + name);
+                out.write("\n");
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        File manifest = new File(this.folder, MANIFEST);
+        if (!tmp.renameTo(manifest))
+            throw new IOException("Unable to write " + manifest);
+    }
+
+    // A finished snapshot in folder, or null if there isn't one
+    public static RegionSnapshot open(File folder) throws IOException
+    {
+        File manifest = new File(folder, MANIFEST);
+        if (!manifest.isFile()) return null;
+        RegionSnapshot snap = new RegionSnapshot(folder);
+        BufferedReader in = new BufferedReader(new FileReader(manifest));
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.startsWith("world "))
+                    snap.world = line.substring(6);
+                else if (line.startsWith("folder "))
+                    snap.regiondir = new File(line.substring(7));
+                else if (line.startsWith("region "))
+                {
+                    String[] f = line.split(" ");
+                    if (f.length < 3) continue;
+                    Region r;
+                    try { r = new Region(Integer.parseInt(f[1]), Integer.parseInt(f[2])); }
+                    catch (NumberFormatException e) { continue; }
+                    for (int i = 3; i < f.length; i++)
+                    {
+                        r.files.add(f[i]);
+                        snap.bytes += new File(folder, f[i]).length();
+                        snap.files++;
+                    }
+                    snap.regions.add(r);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (snap.world == null || snap.regiondir == null)
+            throw new IOException(manifest + " is damaged");
+        return snap;
+    }
+
+    // Put the region files back the way they were, and remove any the
+    // regeneration created. regiondir is where the world keeps them now,
+    // and the server mustn't have any of them open.
+    public void restore(File regiondir) throws IOException
+    {
+        for (Region r:this.regions)
+            for (String ext:EXTENSIONS)
+            {
+                String name = "r." + r.x + "." + r.z + "." + ext;
+                File target = new File(regiondir, name);
+                if (r.files.contains(name))
+                {
+                    // Into a new file first, so a restore that dies halfway
+                    // doesn't leave a half written region behind
+                    File tmp = new File(regiondir, name + ".restore");
+                    copy(new File(this.folder, name), tmp);
+                    if ((target.exists() && !target.delete()) || !tmp.renameTo(target))
+                        throw new IOException("Unable to replace " + target);
+                }
+                else if (target.exists() && !target.delete())
+                    throw new IOException("Unable to delete " + target);
+            }
+    }
+
+    // Throw the snapshot away
+    public static void delete(File folder) throws IOException
+    {
+        File[] contents = folder.listFiles();
+        if (contents != null)
+            for (File f:contents)
+                if (!f.delete())
+                    throw new IOException("Unable to delete " + f);
+        if (folder.exists() && !folder.delete())
+            throw new IOException("Unable to delete " + folder);
+    }
+
+    // Whether every chunk region file f's header points to lies within the
+    // file and looks like a chunk, which a copy taken while the server was
+    // writing the original may not. An empty file is a region with nothing
+    // in it yet.
+    private static boolean isConsistent(File f) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try
+        {
+            long length = in.length();
+            if (length == 0) return true;
+            if (length < 2 * SECTOR) return false;
+            byte[] header = new byte[SECTOR];
+            in.readFully(header);
+            for (int i = 0; i < SECTOR; i += 4)
+            {
+                int offset = ((header[i] & 0xFF) << 16) | ((header[i + 1] & 0xFF) << 8) | (header[i + 2] & 0xFF);
+                int sectors = header[i + 3] & 0xFF;
+                if (offset == 0 && sectors == 0) continue;
+                if (offset < 2 || sectors == 0 || (long)(offset + sectors) * SECTOR > length)
+                    return false;
+                in.seek((long)offset * SECTOR);
+                int size = in.readInt();
+                int compression = in.readByte();
+                if (size < 1 || size > sectors * SECTOR - 4 || (compression != 1 && compression != 2))
+                    return false;
+            }
+            return true;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static long copy(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(to);
+            try
+            {
+                FileChannel src = in.getChannel(), dst = out.getChannel();
+                long size = src.size(), pos = 0;
+                while (pos < size)
+                {
+                    long n = src.transferTo(pos, size - pos, dst);
+                    // Only if the file shrank under us
+                    if (n <= 0) break;
+                    pos += n;
+                }
+                return pos;
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
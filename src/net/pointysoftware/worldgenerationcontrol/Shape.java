@@ -0,0 +1,449 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.Arrays;
+
+// The set of chunks a generation covers. Rather than asking about every chunk,
+// callers ask for the spans of a row: the covered x ranges of one z, as
+// [x1, x2, x1, x2...] pairs, inclusive, sorted and not touching. That's a
+// couple of multiplies per row for a circle, and lets shapes be combined by
+// merging span lists.
+//
+// All values are in *chunk coordinates*, except Polygon's vertices
+abstract class Shape
+{
+    protected final static int[] NONE = new int[0];
+
+    // Bounding box, inclusive
+    protected int xStart, zStart, xEnd, zEnd;
+    private int area = -1;
+
+    public int getXStart() { return this.xStart; }
+    public int getZStart() { return this.zStart; }
+    public int getXEnd() { return this.xEnd; }
+    public int getZEnd() { return this.zEnd; }
+
+    // Where a spiral should start from
+    public int getXCenter() { return (this.xStart + this.xEnd) >> 1; }
+    public int getZCenter() { return (this.zStart + this.zEnd) >> 1; }
+
+    // Covered spans of row z, see above. Don't modify the returned array.
+    public abstract int[] getSpans(int z);
+
+    // Everything covered in any of rows z1 through z2
+    public int[] getSpans(int z1, int z2)
+    {
+        int[] ret = NONE;
+        for (int z = Math.max(z1, this.zStart); z <= Math.min(z2, this.zEnd); z++)
+            ret = union(ret, this.getSpans(z));
+        return ret;
+    }
+
+    public boolean contains(int x, int z)
+    {
+        if (z < this.zStart || z > this.zEnd) return false;
+        int[] spans = this.getSpans(z);
+        for (int i = 0; i < spans.length; i += 2)
+            if (x >= spans[i] && x <= spans[i + 1])
+                return true;
+        return false;
+    }
+
+    // Whether any chunk of the rectangle is covered
+    public boolean intersects(int x1, int z1, int x2, int z2)
+    {
+        if (x2 < this.xStart || x1 > this.xEnd || z2 < this.zStart || z1 > this.zEnd) return false;
+        for (int z = Math.max(z1, this.zStart); z <= Math.min(z2, this.zEnd); z++)
+        {
+            int[] spans = this.getSpans(z);
+            for (int i = 0; i < spans.length; i += 2)
+                if (spans[i] <= x2 && spans[i + 1] >= x1)
+                    return true;
+        }
+        return false;
+    }
+
+    // Whether every chunk of the rectangle is covered
+    public boolean covers(int x1, int z1, int x2, int z2)
+    {
+        if (x1 < this.xStart || x2 > this.xEnd || z1 < this.zStart || z2 > this.zEnd) return false;
+        for (int z = z1; z <= z2; z++)
+        {
+            int[] spans = this.getSpans(z);
+            boolean found = false;
+            for (int i = 0; i < spans.length && !found; i += 2)
+                found = spans[i] <= x1 && spans[i + 1] >= x2;
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    // Number of chunks covered
+    public int getArea()
+    {
+        if (this.area < 0)
+        {
+            long area = 0;
+            for (int z = this.zStart; z <= this.zEnd; z++)
+            {
+                int[] spans = this.getSpans(z);
+                for (int i = 0; i < spans.length; i += 2)
+                    area += spans[i + 1] - spans[i] + 1;
+            }
+            this.area = (int)Math.min(area, Integer.MAX_VALUE);
+        }
+        return this.area;
+    }
+
+    // Merge two span lists
+    protected static int[] union(int[] a, int[] b)
+    {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        int[] ret = new int[a.length + b.length];
+        int n = 0, i = 0, j = 0;
+        while (i < a.length || j < b.length)
+        {
+            int x1, x2;
+            if (j >= b.length || (i < a.length && a[i] <= b[j]))
+            {
+                x1 = a[i]; x2 = a[i + 1]; i += 2;
+            }
+            else
+            {
+                x1 = b[j]; x2 = b[j + 1]; j += 2;
+            }
+            if (n > 0 && x1 <= ret[n - 1] + 1)
+                ret[n - 1] = Math.max(ret[n - 1], x2);
+            else
+            {
+                ret[n++] = x1;
+                ret[n++] = x2;
+            }
+        }
+        return n == ret.length ? ret : Arrays.copyOf(ret, n);
+    }
+
+    // Spans of a that aren't in b
+    protected static int[] subtract(int[] a, int[] b)
+    {
+        if (a.length == 0 || b.length == 0) return a;
+        // Each span of b can split at most one span of a in two
+        int[] ret = new int[a.length + b.length];
+        int n = 0, j = 0;
+        for (int i = 0; i < a.length; i += 2)
+        {
+            int x1 = a[i], x2 = a[i + 1];
+            while (j < b.length && b[j + 1] < x1) j += 2;
+            int k = j;
+            while (x1 <= x2 && k < b.length && b[k] <= x2)
+            {
+                if (b[k] > x1)
+                {
+                    ret[n++] = x1;
+                    ret[n++] = b[k] - 1;
+                }
+                x1 = Math.max(x1, b[k + 1] + 1);
+                k += 2;
+            }
+            if (x1 <= x2)
+            {
+                ret[n++] = x1;
+                ret[n++] = x2;
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    static class Rect extends Shape
+    {
+        private int[] span;
+
+        Rect(int xStart, int zStart, int xEnd, int zEnd)
+        {
+            this.xStart = xStart;
+            this.zStart = zStart;
+            this.xEnd = xEnd;
+            this.zEnd = zEnd;
+            this.span = new int[] { xStart, xEnd };
+        }
+
+        public int[] getSpans(int z) { return (z < this.zStart || z > this.zEnd) ? NONE : this.span; }
+        public int[] getSpans(int z1, int z2) { return (z2 < this.zStart || z1 > this.zEnd) ? NONE : this.span; }
+        public boolean intersects(int x1, int z1, int x2, int z2)
+        {
+            return x2 >= this.xStart && x1 <= this.xEnd && z2 >= this.zStart && z1 <= this.zEnd;
+        }
+        public boolean covers(int x1, int z1, int x2, int z2)
+        {
+            return x1 >= this.xStart && x2 <= this.xEnd && z1 >= this.zStart && z2 <= this.zEnd;
+        }
+    }
+
+    // Chunks within radius of the center chunk, the same test gencircle has
+    // always used
+    static class Circle extends Shape
+    {
+        private int xCenter, zCenter;
+        private long r2;
+
+        Circle(int xCenter, int zCenter, int radius)
+        {
+            this.xCenter = xCenter;
+            this.zCenter = zCenter;
+            this.r2 = (long)radius * radius;
+            this.xStart = xCenter - radius;
+            this.zStart = zCenter - radius;
+            this.xEnd = xCenter + radius;
+            this.zEnd = zCenter + radius;
+        }
+
+        public int getXCenter() { return this.xCenter; }
+        public int getZCenter() { return this.zCenter; }
+
+        public int[] getSpans(int z)
+        {
+            long dz = z - this.zCenter;
+            long rest = this.r2 - dz * dz;
+            if (rest < 0) return NONE;
+            int halfwidth = (int)Math.sqrt(rest);
+            while ((long)halfwidth * halfwidth > rest) halfwidth--;
+            while ((long)(halfwidth + 1) * (halfwidth + 1) <= rest) halfwidth++;
+            return new int[] { this.xCenter - halfwidth, this.xCenter + halfwidth };
+        }
+
+        // The widest row in the band decides
+        public int[] getSpans(int z1, int z2)
+        {
+            if (z2 < this.zStart || z1 > this.zEnd) return NONE;
+            return this.getSpans(Math.max(z1, Math.min(z2, this.zCenter)));
+        }
+
+        public boolean intersects(int x1, int z1, int x2, int z2)
+        {
+            long dx = Math.max(0, Math.max(x1 - this.xCenter, this.xCenter - x2));
+            long dz = Math.max(0, Math.max(z1 - this.zCenter, this.zCenter - z2));
+            return dx * dx + dz * dz <= this.r2;
+        }
+
+        public boolean covers(int x1, int z1, int x2, int z2)
+        {
+            long dx = Math.max(Math.abs((long)x1 - this.xCenter), Math.abs((long)x2 - this.xCenter));
+            long dz = Math.max(Math.abs((long)z1 - this.zCenter), Math.abs((long)z2 - this.zCenter));
+            return dx * dx + dz * dz <= this.r2;
+        }
+    }
+
+    // Chunks whose middle is inside the polygon. Vertices are in block
+    // coordinates, and the edges may cross each other (even-odd rule).
+    static class Polygon extends Shape
+    {
+        private long[] xs, zs;
+
+        Polygon(long[] xs, long[] zs)
+        {
+            this.xs = xs;
+            this.zs = zs;
+            long x1 = xs[0], z1 = zs[0], x2 = xs[0], z2 = zs[0];
+            for (int i = 1; i < xs.length; i++)
+            {
+                x1 = Math.min(x1, xs[i]);
+                z1 = Math.min(z1, zs[i]);
+                x2 = Math.max(x2, xs[i]);
+                z2 = Math.max(z2, zs[i]);
+            }
+            this.xStart = (int)(x1 >> 4);
+            this.zStart = (int)(z1 >> 4);
+            this.xEnd = (int)(x2 >> 4);
+            this.zEnd = (int)(z2 >> 4);
+        }
+
+        public int[] getSpans(int z)
+        {
+            if (z < this.zStart || z > this.zEnd) return NONE;
+            double zc = z * 16.0 + 8;
+            double[] cross = new double[this.xs.length];
+            int n = 0;
+            for (int i = 0, j = this.xs.length - 1; i < this.xs.length; j = i++)
+            {
+                if ((this.zs[i] <= zc) != (this.zs[j] <= zc))
+                    cross[n++] = this.xs[i] + (zc - this.zs[i]) * (this.xs[j] - this.xs[i]) / (double)(this.zs[j] - this.zs[i]);
+            }
+            if (n == 0) return NONE;
+            Arrays.sort(cross, 0, n);
+            int[] ret = NONE;
+            for (int i = 0; i + 1 < n; i += 2)
+            {
+                // Chunk x is in if its middle, x * 16 + 8, is in [a, b)
+                int x1 = (int)Math.ceil((cross[i] - 8) / 16);
+                int x2 = (int)Math.ceil((cross[i + 1] - 8) / 16) - 1;
+                if (x1 <= x2)
+                    ret = union(ret, new int[] { x1, x2 });
+            }
+            return ret;
+        }
+    }
+
+    static class Union extends Shape
+    {
+        private Shape[] parts;
+
+        Union(Shape[] parts)
+        {
+            this.parts = parts;
+            this.xStart = this.zStart = Integer.MAX_VALUE;
+            this.xEnd = this.zEnd = Integer.MIN_VALUE;
+            for (Shape s:parts)
+            {
+                this.xStart = Math.min(this.xStart, s.xStart);
+                this.zStart = Math.min(this.zStart, s.zStart);
+                this.xEnd = Math.max(this.xEnd, s.xEnd);
+                this.zEnd = Math.max(this.zEnd, s.zEnd);
+            }
+        }
+
+        public int[] getSpans(int z)
+        {
+            int[] ret = NONE;
+            for (Shape s:this.parts)
+                ret = union(ret, s.getSpans(z));
+            return ret;
+        }
+        public int[] getSpans(int z1, int z2)
+        {
+            int[] ret = NONE;
+            for (Shape s:this.parts)
+                ret = union(ret, s.getSpans(z1, z2));
+            return ret;
+        }
+        public boolean intersects(int x1, int z1, int x2, int z2)
+        {
+            for (Shape s:this.parts)
+                if (s.intersects(x1, z1, x2, z2))
+                    return true;
+            return false;
+        }
+    }
+
+    // Chunks in shape but not in hole, e.g. a circle minus a smaller circle
+    // for a ring
+    static class Difference extends Shape
+    {
+        private Shape shape, hole;
+
+        Difference(Shape shape, Shape hole)
+        {
+            this.shape = shape;
+            this.hole = hole;
+            this.xStart = shape.xStart;
+            this.zStart = shape.zStart;
+            this.xEnd = shape.xEnd;
+            this.zEnd = shape.zEnd;
+        }
+
+        public int getXCenter() { return this.shape.getXCenter(); }
+        public int getZCenter() { return this.shape.getZCenter(); }
+
+        public int[] getSpans(int z) { return subtract(this.shape.getSpans(z), this.hole.getSpans(z)); }
+
+        // A rectangle completely inside the hole is the common case to skip
+        // quickly. Anything else may still turn out to be empty, which
+        // getSpans will find.
+        public boolean intersects(int x1, int z1, int x2, int z2)
+        {
+            return this.shape.intersects(x1, z1, x2, z2) && !this.hole.covers(x1, z1, x2, z2);
+        }
+    }
+
+    // Another shape worked out once into a ChunkBitSet, so a row's spans come
+    // from a word per 32 chunks however many parts went into it. For
+    // /genbatch, where every part of a big batch would otherwise be asked
+    // about every row, every time the planner looks at one.
+    static class Raster extends Shape
+    {
+        private ChunkBitSet bits = new ChunkBitSet();
+        private int xCenter, zCenter;
+        // The pages of the last band of 32 rows asked about, since rows are
+        // mostly asked for in order
+        private int bandz = Integer.MIN_VALUE;
+        private long[][] band;
+
+        Raster(Shape shape)
+        {
+            this.xStart = shape.xStart;
+            this.zStart = shape.zStart;
+            this.xEnd = shape.xEnd;
+            this.zEnd = shape.zEnd;
+            this.xCenter = shape.getXCenter();
+            this.zCenter = shape.getZCenter();
+            this.band = new long[(this.xEnd >> 5) - (this.xStart >> 5) + 1][];
+            for (int z = this.zStart; z <= this.zEnd; z++)
+            {
+                int[] spans = shape.getSpans(z);
+                for (int i = 0; i < spans.length; i += 2)
+                    this.bits.setSpan(spans[i], spans[i + 1], z);
+            }
+        }
+
+        public int getXCenter() { return this.xCenter; }
+        public int getZCenter() { return this.zCenter; }
+        public int getArea() { return this.bits.size(); }
+
+        public int[] getSpans(int z)
+        {
+            if (z < this.zStart || z > this.zEnd) return NONE;
+            int px0 = this.xStart >> 5;
+            if (z >> 5 != this.bandz)
+            {
+                this.bandz = z >> 5;
+                for (int i = 0; i < this.band.length; i++)
+                    this.band[i] = this.bits.getPage(px0 + i, this.bandz);
+            }
+            int[] ret = NONE;
+            int n = 0, word = (z & 31) >> 1, shift = (z & 1) << 5;
+            for (int i = 0; i < this.band.length; i++)
+            {
+                if (this.band[i] == null) continue;
+                int row = (int)(this.band[i][word] >>> shift);
+                int base = (px0 + i) << 5;
+                while (row != 0)
+                {
+                    int from = Integer.numberOfTrailingZeros(row);
+                    int to = from + Integer.numberOfTrailingZeros(~(row >>> from)) - 1;
+                    // Runs carry on across page boundaries
+                    if (n > 0 && ret[n - 1] == base + from - 1)
+                        ret[n - 1] = base + to;
+                    else
+                    {
+                        if (n == ret.length)
+                            ret = Arrays.copyOf(ret, Math.max(8, n * 2));
+                        ret[n++] = base + from;
+                        ret[n++] = base + to;
+                    }
+                    row = to >= 31 ? 0 : row & (-1 << (to + 1));
+                }
+            }
+            return n == ret.length ? ret : Arrays.copyOf(ret, n);
+        }
+    }
+}
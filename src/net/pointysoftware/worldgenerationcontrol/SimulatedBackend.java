@@ -0,0 +1,142 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.ChunkSnapshot;
+
+// A world that only exists in memory, for load testing planners, scheduling
+// and memory handling on a plain JVM at sizes no test server could manage.
+//
+// Each kind of operation takes as long as it's told to, spinning on the
+// calling thread like the server would, and every loaded chunk holds on to
+// as much heap as it's told to until it's unloaded. Which chunks exist is one
+// bit each, so millions of them are cheap.
+class SimulatedBackend implements WorldBackend
+{
+    // WRITE is saveChunk, SAVE a whole world save
+    public enum Op { LOAD, GENERATE, REGENERATE, RELIGHT, UNLOAD, SAVE, WRITE }
+
+    private String name;
+    private long[] latency = new long[Op.values().length];
+    private long[] counts = new long[Op.values().length];
+    private int chunkbytes = 0;
+    private int storedbytes = 0;
+    private ChunkBitSet existing = new ChunkBitSet();
+    private HashMap<Long, byte[]> loaded = new HashMap<Long, byte[]>();
+    private boolean players = false;
+    private HashMap<String, double[]> positions = new HashMap<String, double[]>();
+    private long saved = 0;
+
+    SimulatedBackend(String name)
+    {
+        this.name = name;
+    }
+
+    public void setLatency(Op op, double ms) { this.latency[op.ordinal()] = (long)(ms * 1000000); }
+    // Heap each loaded chunk ties up, a real one is somewhere around 80KiB
+    public void setChunkMemory(int bytes) { this.chunkbytes = bytes; }
+    // What getStoredSize says existing chunks take up on disk
+    public void setChunkDiskSize(int bytes) { this.storedbytes = bytes; }
+    public void setPlayers(boolean v) { this.players = v; }
+    // Put a player at block x, z, as if they walked or flew there
+    public void movePlayer(String name, double x, double z) { this.positions.put(name, new double[] { x, z }); }
+    public void removePlayer(String name) { this.positions.remove(name); }
+    // Pretend a chunk was generated before we got here
+    public void setExisting(int x, int z) { this.existing.set(x, z); }
+    public boolean exists(int x, int z) { return this.existing.get(x, z); }
+    public long getCount(Op op) { return this.counts[op.ordinal()]; }
+
+    private void spend(Op op)
+    {
+        this.counts[op.ordinal()]++;
+        long nanos = this.latency[op.ordinal()];
+        if (nanos <= 0) return;
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end);
+    }
+
+    private static long key(int x, int z)
+    {
+        return ((long)x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public String getName() { return this.name; }
+    public int getMaxHeight() { return 128; }
+    public boolean hasSky() { return true; }
+
+    public boolean isChunkLoaded(int x, int z) { return this.loaded.containsKey(key(x, z)); }
+    public boolean loadChunk(int x, int z)
+    {
+        long k = key(x, z);
+        if (this.loaded.containsKey(k)) return false;
+        boolean created = !this.existing.get(x, z);
+        this.spend(created ? Op.GENERATE : Op.LOAD);
+        this.existing.set(x, z);
+        this.loaded.put(k, new byte[this.chunkbytes]);
+        return created;
+    }
+    public void regenerateChunk(int x, int z)
+    {
+        this.spend(Op.REGENERATE);
+        this.loaded.put(key(x, z), new byte[this.chunkbytes]);
+    }
+    public void relightChunk(int x, int z) { this.spend(Op.RELIGHT); }
+    // Players aren't in any particular chunk here, so safe makes no
+    // difference
+    public void unloadChunk(int x, int z, boolean save, boolean safe)
+    {
+        if (this.loaded.remove(key(x, z)) != null)
+        {
+            this.spend(Op.UNLOAD);
+            if (save) this.saved++;
+        }
+    }
+    // Chunks unloaded with save, i.e. handed to the server's writer
+    public long getSavedCount() { return this.saved; }
+    public int getLoadedChunkCount() { return this.loaded.size(); }
+
+    public void save() { this.spend(Op.SAVE); }
+    public void saveChunk(int x, int z)
+    {
+        if (this.loaded.containsKey(key(x, z)))
+            this.spend(Op.WRITE);
+    }
+    public void flushChunks() {}
+    public int getStoredSize(int x, int z) { return this.existing.get(x, z) ? this.storedbytes : 0; }
+    public int getPendingTicks() { return 0; }
+    public void catchUpTicks(int max) {}
+
+    public boolean hasPlayers() { return this.players || this.positions.size() > 0; }
+    public Map<String, double[]> getPlayerPositions() { return this.positions; }
+    public int kickPlayers(int x, int z, String msg) { return 0; }
+
+    // No blocks to light, so parallel lighting has nothing to work with and
+    // lighting falls back to relightChunk
+    public ChunkSnapshot getSnapshot(int x, int z) { return null; }
+    public void applyLighting(LightingEngine engine, LightingEngine.Result r) {}
+
+    public File getRegionFolder() { return null; }
+}
@@ -0,0 +1,107 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+// Sends status messages to the players with worldgenerationcontrol.statusupdates
+// and the console.
+//
+// Checking every online player's permissions for every message adds up on a
+// busy server with a fast generation, so who gets them is kept track of from
+// join and quit events instead. Bukkit doesn't tell anyone when permissions
+// change, so the list is also rebuilt every REFRESH.
+class StatusBroadcaster implements Listener
+{
+    public final static String PERMISSION = "worldgenerationcontrol.statusupdates";
+    private final static long REFRESH = 10000000000L;
+
+    private Server server;
+    private Logger logger;
+    private ArrayList<Player> subscribers = new ArrayList<Player>();
+    private long refreshed = 0;
+
+    StatusBroadcaster(Server server, Logger logger)
+    {
+        this.server = server;
+        this.logger = logger;
+    }
+
+    // After permission plugins have set the player up
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event)
+    {
+        Player p = event.getPlayer();
+        if (p.hasPermission(PERMISSION) && !this.subscribers.contains(p))
+            this.subscribers.add(p);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event)
+    {
+        this.subscribers.remove(event.getPlayer());
+    }
+
+    // Rebuild the list from scratch, e.g. after a permissions reload
+    public void refresh()
+    {
+        this.subscribers.clear();
+        for (Player p:this.server.getOnlinePlayers())
+            if (p.hasPermission(PERMISSION))
+                this.subscribers.add(p);
+        this.refreshed = System.nanoTime();
+    }
+
+    private void refreshIfStale()
+    {
+        if (this.refreshed == 0 || System.nanoTime() - this.refreshed > REFRESH)
+            this.refresh();
+    }
+
+    // Send msg to every subscriber and the console, leaving out except (who
+    // has presumably been sent it already)
+    public void broadcast(String msg, CommandSender except)
+    {
+        this.refreshIfStale();
+        for (int i = 0; i < this.subscribers.size(); i++)
+        {
+            Player p = this.subscribers.get(i);
+            if (p != except && p.isOnline())
+                p.sendMessage(msg);
+        }
+        if (!(except instanceof ConsoleCommandSender))
+            this.logger.info(ChatColor.stripColor(msg));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.util.Map;
+
+import org.bukkit.ChunkSnapshot;
+
+// Everything a generation needs from the world it's generating, so it can run
+// against something other than a live server. WorldGenerationControl's
+// BukkitBackend is the real thing, SimulatedBackend is for load testing.
+//
+// All of these are called from the main thread, and all coordinates are chunk
+// coordinates.
+interface WorldBackend
+{
+    String getName();
+    int getMaxHeight();
+    // False for the nether and the end, which have no sky light
+    boolean hasSky();
+
+    boolean isChunkLoaded(int x, int z);
+    // Load a chunk, generating it if it doesn't exist yet. Returns true if it
+    // had to be generated.
+    boolean loadChunk(int x, int z);
+    // Throw away a chunk and generate it afresh. It must be loaded.
+    void regenerateChunk(int x, int z);
+    // Reset a loaded chunk's lighting and work it out again, using the
+    // server's own lighting code. Throws if this server can't.
+    void relightChunk(int x, int z) throws Exception;
+    // Does nothing if it isn't loaded. If safe, a chunk players are in or
+    // near is left loaded, along with any changes they've made to it. Only
+    // regeneration, which kicks them out first, unloads without it.
+    void unloadChunk(int x, int z, boolean save, boolean safe);
+    int getLoadedChunkCount();
+
+    // Make the server write out everything it's holding, rather than at its
+    // own pace. Throws if this server can't.
+    void save() throws Exception;
+    // Just one loaded chunk. It may only be queued for writing until
+    // flushChunks(). Throws if this server can't.
+    void saveChunk(int x, int z) throws Exception;
+    // Write out chunks saveChunk queued, now
+    void flushChunks() throws Exception;
+    // Bytes the chunk takes up on disk, or 0 if we can't tell
+    int getStoredSize(int x, int z);
+    // Block updates the server has queued up, or 0 if we can't tell
+    int getPendingTicks();
+    // Have the server work through queued block updates until there are no
+    // more than max. Throws if this server can't.
+    void catchUpTicks(int max) throws Exception;
+
+    boolean hasPlayers();
+    // Block x and z of everyone in this world, by name
+    Map<String, double[]> getPlayerPositions();
+    // Kick any players in a chunk, returns how many
+    int kickPlayers(int x, int z, String msg);
+
+    // For LightingEngine. Null if the chunk isn't loaded, or this backend
+    // doesn't have block data to snapshot.
+    ChunkSnapshot getSnapshot(int x, int z);
+    void applyLighting(LightingEngine engine, LightingEngine.Result r) throws Exception;
+
+    // Where the world's region files are, or null if we don't know
+    File getRegionFolder();
+}
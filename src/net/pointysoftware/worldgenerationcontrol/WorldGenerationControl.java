@@ -21,16 +21,17 @@
 
 package net.pointysoftware.worldgenerationcontrol;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 
 import java.util.logging.Logger;
-import java.util.Iterator;
 import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.TreeSet;
 import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -40,6 +41,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.Material;
@@ -53,17 +55,13 @@ import org.bukkit.entity.Player;
 import org.bukkit.ChatColor;
 
 import org.bukkit.command.Command;
-import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.command.CommandSender;
 
 import org.bukkit.scheduler.BukkitScheduler;
 
-// Plugin *Does not* require craftbukkit, but lighting wont be available
-// otherwise as Bukkit doesn't currently provide the right calls.
-// (Our old method was a hack that relied on CraftBukkit quirks anyway)
-import org.bukkit.craftbukkit.CraftChunk;
-// This is used by checkCWTickList to work around a CW bug
-import org.bukkit.craftbukkit.CraftWorld;
+// Plugin *Does not* require craftbukkit, but lighting, saving and tick list
+// catch up won't be available otherwise as Bukkit doesn't currently provide
+// the right calls. What we use of it is found at runtime, see NmsAdapter.
 
 public class WorldGenerationControl extends JavaPlugin implements Runnable
 {
@@ -85,13 +83,22 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         SLOW,
         // tiny regions, very minimal lag, will
         // take *forever*.
-        VERYSLOW
+        VERYSLOW,
+        // Measure how long steps actually take and how
+        // the server is keeping up, and pick region size
+        // and step interval to stay within a per-tick
+        // budget and/or above a TPS floor.
+        ADAPTIVE
     }
     public enum GenerationLighting
     {
         // Force recalculate lighting on all chunks
         // we pass over
         EXTREME,
+        // Check the lighting of chunks we pass over,
+        // and recalculate only those where it's
+        // broken
+        AUDIT,
         // Update unprocessed lighting on chunks we
         // pass over
         NORMAL,
@@ -106,11 +113,11 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
     }
     public class GenerationRegion
     {
-        private ArrayDeque<QueuedRegion> queuedregions = new ArrayDeque<QueuedRegion>();
-        private World world;
+        // Areas to generate, each handing out its regions as we go
+        private ArrayDeque<RegionPlanner> planners = new ArrayDeque<RegionPlanner>();
+        private WorldBackend backend;
         private GenerationLighting fixlighting = GenerationLighting.NORMAL;
         private GenerationSpeed speed = GenerationSpeed.NORMAL;
-        private int totalregions = 0;
         private int regionsize;
         private long starttime = 0;
         private boolean debug = false;
@@ -118,61 +125,191 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         private boolean onlywhenempty = false;
         private long lastnag = 0;
         private long lastdebugnag = 0;
-        private TreeSet ticklist = null;
-        private long memwait = -1;
-        private boolean iscraftbukkit = false;
+        private MemoryGovernor.Level memory = MemoryGovernor.Level.OK;
+        private boolean memskip = false;
+        private boolean cansave = true;
+        private boolean cansavechunks = true;
         private boolean forcekeepup = false;
+        private AdaptiveSpeed adaptive = null;
+        private int id;
+        private String spec;
+        // Planners we've finished, so the journal can find its place again
+        private int plannersdone = 0;
+        private int[] journalstate = null;
+        private long journalstatetime = 0;
+        // Chunks already on disk, if we're allowed to skip them
+        private RegionFileScanner existing = null;
+        private boolean reportedexisting = false;
+        // Chunks shared with the next region are left loaded for it, rather
+        // than being saved, unloaded and loaded right back. retaincap limits
+        // how many we hold on to between steps.
+        private ChunkList retained = new ChunkList();
+        private int retaincap = 256;
+        private RegionPlanner.Traversal traversal = RegionPlanner.Traversal.ROWS;
+        private int[] nextbounds = new int[4];
+        // /genfollow has no planners, its regions are placed wherever
+        // players are about to be. known is chunks we've seen exist, so each
+        // is only looked up in the world once. Parts of it nobody is headed
+        // for any more are dropped every so often, so it doesn't grow for as
+        // long as the job runs.
+        private PlayerPredictor follow = null;
+        private PlayerPredictor.Chunks followchunks = null;
+        private ChunkBitSet known = null;
+        private long knownpruned = 0;
+        // Region file headers, read off the main thread, for telling whether
+        // a chunk nobody has loaded exists. Null without a region folder to
+        // read, then the backend is asked directly.
+        private ExistingChunks ondisk = null;
+        private int[] followat = new int[4];
+        // The span queueRegion covers when it isn't given a shape
+        private int[] fullrow = new int[2];
+        // With /destroyAndRegenerateArea, the region files it will overwrite
+        // are copied to snapshotfolder before anything is regenerated
+        private File snapshotfolder = null;
+        private RegionSnapshot snapshot = null;
+        private String snapshoterror = null;
+        private boolean snapshotdone = false;
+        private long snapshotstart = 0;
+        // A region's chunks are loaded, and later unloaded, a slice at a time,
+        // slicesize chunks a tick (or enough to spread them over the pause
+        // between regions if it's -1, or all at once if it's 0). region is
+        // the region in hand, loading while loading is set, and loadpos and
+        // rimpos how far through it we are. The lists are reused from one
+        // region to the next, so stepping doesn't allocate anything.
+        private ChunkList region = new ChunkList();
+        private boolean loading = false;
+        private int loadpos = 0, rimpos = 0;
+        private ChunkList tounload = new ChunkList();
+        private ChunkList tosave = new ChunkList();
+        private int slicesize = -1;
+        private int slicequota = 0;
+        // Chunks this generation created, regenerated or relit. Those, and
+        // their neighbors (population and light both spill over the edges),
+        // are saved when unloaded, anything else is dropped unchanged.
+        // Only needed around chunks still to be unloaded, so pages (region
+        // files) behind us are dropped after each region, see pruneChanged.
+        private ChunkBitSet changed = new ChunkBitSet();
+        private long regionnanos = 0;
+        private int regionticks = 0;
+        // Lighting is its own stage, done a few chunks a tick by runLighting
+        // rather than in the same tick that loaded them. The last region's
+        // chunks stay loaded, and the next region waits, until it's done.
+        // lightpos is how far through the region it has got.
+        private boolean lighting = false;
+        private int lightpos = 0;
+        private double lightbudget = 10;
+        private long lightstart = 0;
+        private int lightticks = 0;
+        // With lightthreads > 0, lighting is worked out on a pool of threads
+        // from snapshots of the region. The lighting stage then takes the
+        // snapshots (snapshotpos is how far that's got, -1 once done), hands
+        // out the work, and writes back the results.
+        private int lightthreads = Math.max(1, runtime.availableProcessors() - 1);
+        private LightingEngine engine = null;
+        private int snapshotpos = -1;
+        // /lighting:audit, and the chunks it fixed this region
+        private LightingAudit audit = null;
+        private ArrayList<String> auditfixed = new ArrayList<String>();
+        private HashMap<Long, ChunkSnapshot> snapshots = new HashMap<Long, ChunkSnapshot>();
+        private int lightingleft = 0;
+        // Chunks with a neighbor we got no snapshot of, which the workers
+        // would take for solid rock, or that the workers failed on. The
+        // server lights those instead.
+        private ChunkList unsnapshotted = new ChunkList();
+        // Share of the tick budget, see WorldGenerationControl.run
+        private double weight = 1;
+        private double credit = 0;
+        private long nexttick = 0;
+        // Higher goes first, and pushes lower ones aside. stopping means it's
+        // been asked to make way, and will once it's between regions.
+        private int priority = 0;
+        private boolean paused = false;
+        private boolean stopping = false;
+        // Progress messages go out at most once every statusinterval
+        private long statusinterval = 1000000000L;
+        private long laststatus = 0;
+        private GenerationMetrics metrics;
+        // Where to append metrics every metricsinterval, if anywhere
+        private File metricsfile = null;
+        private boolean metricsjson = false;
+        private long metricsinterval = 60000000000L;
+        private long lastexport = 0;
+        // For other plugins, generations created this way aren't resumed after
+        // a restart.
         public GenerationRegion(World world)
         {
-            this.world = world;
-            this.iscraftbukkit = this.world instanceof CraftWorld;
+            this(world, nextJobId++, null);
+        }
+        // id identifies this generation in the job journal, spec is the
+        // command that will recreate it (see parseGeneration)
+        public GenerationRegion(World world, int id, String spec)
+        {
+            this(new BukkitBackend(world), id, spec);
+        }
+        // Not public, WorldBackend is ours. For load testing against a
+        // SimulatedBackend.
+        GenerationRegion(WorldBackend backend)
+        {
+            this(backend, nextJobId++, null);
+        }
+        GenerationRegion(WorldBackend backend, int id, String spec)
+        {
+            this.backend = backend;
+            this.id = id;
+            this.spec = spec;
+            this.metrics = new GenerationMetrics(id, backend.getName(), spec);
             this.setSpeed(GenerationSpeed.NORMAL);
-            
-            if (this.iscraftbukkit)
-            {
-                // Find ticklist handle
-                Class cw;
-                try
-                {
-                    cw = ((CraftWorld)this.world).getHandle().getClass().forName("net.minecraft.server.World");
-                }
-                catch (ClassNotFoundException e) { cw = null; }
-                if (cw != null)
-                {
-                    Field fields[] = cw.getDeclaredFields();
-                    for (int i = 0; i < fields.length; i++)
-                    {
-                        // The ticklist is a private treeset. With a whitelist
-                        // of what variable names it may be, and the fact that
-                        // no other TreeSets exist in world, this is pretty
-                        // safe.
-                        // 1.2.3 - H
-                        // b1.9p5 through 1.1: K
-                        // b1.8.1 - N
-                        // No other treesets in the world fields, so this is pretty safe.
-			// FIXME in 1.3.1 CB this is a (protected) "chunkTickList", a org.bukkit.craftbukkit.util.LongHashset (FFS)
-			//       - It has a .size() we'll need to grab...
-                        if (fields[i].getName() == "K" || fields[i].getName() == "H" || fields[i].getName() == "N")
-                        {
-                            fields[i].setAccessible(true);
-                            Object f;
-                            try { f = fields[i].get(((CraftWorld)this.world).getHandle()); }
-                            catch (IllegalAccessException e) { continue; }
-                            if (f instanceof TreeSet)
-                            {
-                                ticklist = (TreeSet)f;
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
         }
         public void setForceKeepup(boolean v) { this.forcekeepup = v; }
         public void setDebug(boolean v) { this.debug = v; }
         public void setLighting(GenerationLighting v) { this.fixlighting = v; }
         public void setForceRegen(boolean v) { this.forceregeneration = v; }
         public void setOnlyWhenEmpty(boolean v) { this.onlywhenempty = v; }
+        public void setRetainCap(int v) { this.retaincap = v; }
+        public void setSliceSize(int v) { this.slicesize = v; }
+        // Milliseconds per tick the lighting stage may use
+        public void setLightingBudget(double v) { this.lightbudget = v; }
+        // Threads to work out lighting on, 0 to use the server's own
+        // relighting on the main thread
+        public void setLightingThreads(int v) { this.lightthreads = v; }
+        // Append a line of metrics to file every seconds, as JSON or CSV
+        public void setMetricsExport(File file, boolean json, int seconds)
+        {
+            this.metricsfile = file;
+            this.metricsjson = json;
+            this.metricsinterval = seconds * 1000000000L;
+        }
+        public GenerationMetrics getMetrics() { return this.metrics; }
+        // Seconds between progress messages, 0 for one every section
+        public void setSnapshotFolder(File folder) { this.snapshotfolder = folder; }
+        public void setStatusInterval(double seconds) { this.statusinterval = (long)(seconds * 1000000000L); }
+        // Only affects areas added after this is set
+        public void setTraversal(RegionPlanner.Traversal v) { this.traversal = v; }
+        // Keep generating ahead of players in this world, lookahead seconds
+        // along their heading and radius chunks around them, until canceled
+        public void setFollowPlayers(double lookahead, int radius)
+        {
+            this.follow = new PlayerPredictor(lookahead, radius);
+            this.known = new ChunkBitSet();
+            File regions = this.backend.getRegionFolder();
+            this.ondisk = regions != null ? new ExistingChunks(WorldGenerationControl.this, regions) : null;
+            this.followchunks = new PlayerPredictor.Chunks()
+            {
+                public boolean exists(int x, int z)
+                {
+                    if (known.get(x, z)) return true;
+                    if (backend.isChunkLoaded(x, z) || (ondisk != null ? ondisk.isSaved(x, z) : backend.getStoredSize(x, z) > 0))
+                    {
+                        known.set(x, z);
+                        return true;
+                    }
+                    // Only missing once a recent read of its region file says so
+                    return ondisk != null && !ondisk.isMissing(x, z);
+                }
+            };
+        }
+        public boolean isFollowing() { return this.follow != null; }
+        public int getFollowedPlayers() { return this.follow != null ? this.follow.getPlayerCount() : 0; }
         public void setSpeed(GenerationSpeed v)
         {
             this.speed = v;
@@ -186,225 +323,240 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                 regionsize = 32;
                 this.setForceKeepup(false);
             }
+            else if (this.speed == GenerationSpeed.ADAPTIVE)
+            {
+                if (this.adaptive == null)
+                    this.adaptive = new AdaptiveSpeed();
+                regionsize = this.adaptive.getRegionSize();
+            }
+            if (this.speed != GenerationSpeed.ADAPTIVE)
+                this.adaptive = null;
+        }
+        // Target average milliseconds of generation work per server tick, and
+        // the TPS below which we back off. Only used by GenerationSpeed.ADAPTIVE
+        public void setAdaptiveTargets(double budgetms, double mintps)
+        {
+            if (this.adaptive != null) this.adaptive.setTargets(budgetms, mintps);
         }
         
         public boolean shouldRunAllAtOnce() { return this.speed == GenerationSpeed.ALLATONCE; }
+        public String getWorldName() { return this.backend.getName(); }
+        public void setWeight(double v) { this.weight = v; }
+        public double getWeight() { return this.weight; }
+        public double getCredit() { return this.credit; }
+        // Milliseconds of budget earned this tick. Can't be saved up past
+        // what it would earn between two steps at its own speed.
+        public void earn(double ms) { this.credit = Math.min(this.credit + ms, ms * this.getTaskPeriod()); }
+        public void spend(long nanos) { this.credit -= (double)nanos / 1000000; }
+        public void setNextTick(long tick) { this.nexttick = tick; }
+        // Whether it's time for another step, going by its own speed and,
+        // if there's a tick budget, whether it's paid for its last one
+        public boolean isDue(long tick, boolean budgeted)
+        {
+            return tick >= this.nexttick && this.isBetweenRegions() && this.canAfford(budgeted);
+        }
+        public boolean canAfford(boolean budgeted)
+        {
+            return !budgeted || this.shouldRunAllAtOnce() || this.credit >= 0;
+        }
+        public int getId() { return this.id; }
+        // Priority and pausing can change after it's queued, so they're kept
+        // out of spec and added back here
+        public String getSpec()
+        {
+            if (this.spec == null) return null;
+            return this.spec + (this.priority != 0 ? " /priority:" + this.priority : "") + (this.paused ? " /paused" : "");
+        }
+        public void setPriority(int v) { this.priority = v; }
+        public int getPriority() { return this.priority; }
+        public void setPaused(boolean v) { this.paused = v; }
+        public boolean isPaused() { return this.paused; }
+        public void setStopping(boolean v) { this.stopping = v; }
+        public boolean isStopping() { return this.stopping; }
+        // Whether this goes before other in the queue. First come first
+        // served within a priority.
+        public boolean runsBefore(GenerationRegion other)
+        {
+            return this.priority > other.priority || (this.priority == other.priority && this.id < other.id);
+        }
+        // Nothing loaded or being lit, so it can be set aside and picked up
+        // later without losing anything
+        public boolean isBetweenRegions() { return !this.loading && !this.lighting && this.tounload.size() == 0; }
+        public boolean hasStarted() { return this.starttime != 0; }
+        public double getProgress()
+        {
+            int passed = 0, total = 0;
+            for (RegionPlanner p:this.planners)
+            {
+                passed += p.getPassed();
+                total += p.getPassed() + p.getRemaining();
+            }
+            return total > 0 ? (double)passed / total : 1;
+        }
         
-        public void cancelRemaining()
+        // Number of chunks in all queued areas
+        public int getSize()
         {
-            this.queuedregions.clear();
+            int size = 0;
+            for (RegionPlanner p:this.planners)
+                size += p.getSize();
+            return size;
         }
-
-        private void printDebug() { this.printDebug(-1); }
-        private void printDebug(long since)
+        
+        // Where we are, for the job journal. Restoring this on a freshly parsed
+        // copy of this generation picks up after the last completed region.
+        public int[] getState()
         {
-            double pctusedmem = ((double)(runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory());
-            long freemem = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
-            String memstr = String.format("%.02f", 100*pctusedmem) + "% memory in use, " + String.format("%.02f", (double)freemem/(1024*1024)) + "MiB free";
-            String elapsed = since < 0 ? "" : String.format("%.2f", (double)(System.nanoTime() - since) / 1000000) + "ms elapsed. ";
-            // It'll always be 0 in allatonce mode since we force-clean it --v
-            int ticksize = ticklist != null ? ticklist.size() : 0;
-            String tickstr = ticksize > 0 ? " - NextTickList at " + ticksize + " entries" : "";
-            statusMsg("-- " + elapsed + world.getLoadedChunks().length + " chunks now loaded - " + memstr + tickstr);
+            RegionPlanner p = this.planners.peek();
+            int[] planner = p != null ? p.getState() : new int[0];
+            int[] ret = new int[planner.length + 1];
+            ret[0] = this.plannersdone;
+            System.arraycopy(planner, 0, ret, 1, planner.length);
+            return ret;
+        }
+        public boolean restoreState(int[] state)
+        {
+            if (state.length < 1) return false;
+            for (int i = 0; i < state[0]; i++)
+            {
+                if (this.planners.size() == 0) return false;
+                this.planners.pop();
+                this.plannersdone++;
+            }
+            if (this.planners.size() == 0) return state.length == 1;
+            int[] planner = new int[state.length - 1];
+            System.arraycopy(state, 1, planner, 0, planner.length);
+            return this.planners.peek().setState(planner);
+        }
+        // How many ticks the plugin should wait between calls to runStep
+        public int getTaskPeriod()
+        {
+            if (this.adaptive != null) return this.adaptive.getPeriod();
+            return this.shouldRunAllAtOnce() ? 2 : 60;
         }
         
-        // returns true if complete
-        // queued is number of generations the plugin intends to run after this
-        // or -1 if the plugin intends to shutdown the server after this!
-        public boolean runStep(int queued)
+        public void cancelRemaining()
         {
-            long now = System.nanoTime();
-            if (this.starttime == 0)
-                this.starttime = System.nanoTime();
-            
-            // Status message
-            String queuedtext = "";
-            if (queued > 0)
-                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.GRAY + queued + " generations in queue" + ChatColor.DARK_GRAY + "}";
-            if (queued == -1)
-                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.DARK_RED + "shutdown scheduled" + ChatColor.DARK_GRAY + "}";
+            for (RegionPlanner p:this.planners)
+                p.cancel();
+            // /genfollow has no end of its own, runStep finishes once this
+            // is gone
+            this.follow = null;
+            this.followchunks = null;
+            this.known = null;
+            this.ondisk = null;
+        }
 
-            if (this.forcekeepup)
+        // Unload anything we were keeping loaded for the next region
+        public void releaseRetained()
+        {
+            for (int i = 0; i < this.retained.size(); i++)
             {
-                if (this.iscraftbukkit)
-                {
-                    // See if this is CraftBukkit and we can fix the NextTickList leak
-                    // otherwise it can mean lots of useless idle time while the server
-                    // catches up slowly, see: https://github.com/Bukkit/CraftBukkit/pull/501
-                    if (this.ticklist != null)
-                    {
-                        try
-                        {
-                            // Flush the list
-                            // In CB1.1 processing will ramp up as the list grows to 5% of the list per tick
-                            // but equilibrium isn't reached until the millions, so this is still of use for
-                            // users with memory concerns.
-                            // FIXME We shouldn't be linking directly against CraftWorld here
-                            while (ticklist.size() > (this.speed == GenerationSpeed.ALLATONCE ? 0 : 200000))
-                                ((CraftWorld)this.world).getHandle().a(true);
-                        }
-                        catch(Exception e)
-                        {
-                            // Probably CB version mismatch.
-                            if (debug) statusMsg("-- Warning: Failed to force server to keep up on ticklist processing. Probably unknown CraftBukkit version :(");
-                        }
-                    }
-                    // In 1.9+ the async chunk loader takes its sweet fuckin' time
-                    try
-                    {
-                        ((CraftWorld)this.world).getHandle().save(true, null);
-                        ((CraftWorld)this.world).getHandle().saveLevel();
-                    }
-                    catch (Exception e)
-                    {
-                        statusMsg("Warning: Unrecognized CraftBukkit build, cannot force saving. Async chunk loader will slow things down!");
-                        this.iscraftbukkit = false;
-                    }
-                }
-                // With default java options, a moderately loaded server
-                // will simply not invoke the GC until it really needs
-                // to, meaning we can just sit above our memory limits
-                // forever if we don't force it
-                System.runFinalization();
-                System.gc();
-            }
-            
-            // Check memory
-            String nag = null;
-            double pctusedmem = ((double)(runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory());
-            // max - total memory is how much memory is allowed to be used but not allocated,
-            // freeMemory is amount of allocated memory not in use. So not yet allocated + allocated but free == total free
-            long freemem = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
-            // > 80% in use, or <200Megs free.
-            // Until we have better incremental generation, each step needs at least 200megs to not
-            // crash and burn.
-            if ((this.memwait > -1 && pctusedmem > 0.70D) || pctusedmem > 0.80D || freemem < (200 * 1024 * 1024))
-            {
-                nag = "Insufficient free memory ("+String.format("%.02f", (double)freemem/(1024*1024))+"MiB)-- taking a break to let the server catch up";
-                if (this.memwait > -1 && this.memwait + 30000000000L < now)
-                {
-                    this.memwait = now;
-                    // It's fully possible for java, with default settings, to just sit at 85%
-                    // memory without invoking GC. Even without /forceKeepUp, we should
-                    // nudge the GC if its taking a while
-                    if (debug) statusMsg("-- Been waiting on memory for a while, invoking a GC");
-                    System.runFinalization();
-                    System.gc();
-                }
-                if (this.memwait == -1) this.memwait = now;
+                // Those the next region took are its to unload
+                long c = this.retained.get(i);
+                if (!ChunkList.is(c, ChunkList.LOADED)) continue;
+                this.unloadChunk(c, true);
+                this.metrics.count(GenerationMetrics.Counter.UNLOADED);
             }
-            else
-                this.memwait = -1;
-            
-            // Check for /onlyWhenEmpty
-            if (this.onlywhenempty && getServer().getOnlinePlayers().length > 0)
-                nag = "Paused while players are present";
-            
-            // Status message
-            double pct = 1 - (double)queuedregions.size() / totalregions;
-            int region = totalregions - queuedregions.size() + 1;
-            String prefix = ChatColor.DARK_GRAY + "[" + ChatColor.GOLD + String.format("%.2f", 100*pct) + "%" + ChatColor.DARK_GRAY + "]" + ChatColor.GRAY + " ";
-            
-            if (nag != null)
+            this.retained.clear();
+        }
+        
+        // Write out metrics if it's time, or regardless if force
+        private void exportMetrics(boolean force)
+        {
+            if (this.metricsfile == null) return;
+            long now = System.nanoTime();
+            if (!force && now - this.lastexport < this.metricsinterval) return;
+            this.lastexport = now;
+            try
             {
-                // Should bail out
-                if (this.lastnag + 300000000000L < now)
-                {
-                    this.lastnag = now;
-                    statusMsg(prefix + nag + queuedtext);
-                }
-                if (this.lastdebugnag + 3000000000L < now)
-                {
-                    if (debug) printDebug();
-                    this.lastdebugnag = now;
-                }
-                return false;
+                this.metrics.export(this.metricsfile, this.metricsjson);
             }
-            else
-                this.lastnag = 0;
-            
-            // Compute this before popping regions off stack
-            String statusmsg = prefix + ChatColor.GRAY + "Section " + ChatColor.WHITE + region + ChatColor.GRAY + "/" + ChatColor.WHITE + totalregions + queuedtext;
-            
-            // Get next region
-            ArrayDeque<GenerationChunk> chunks = null;
-            while (queuedregions.size() > 0 && chunks == null)
-                chunks = queuedregions.pop().getChunks(this.world);
-            
-            if (chunks == null)
+            catch (IOException e)
             {
-                // Generation complete
-                long millis = (System.nanoTime() - this.starttime) / 1000000;
-                long seconds = millis / 1000;
-                long minutes = seconds / 60;
-                long hours = minutes / 60;
-                long days = hours / 24;
-                String took = (days > 0 ? String.format("%d days, ", days) : "")
-                    + (hours > 0 ? String.format("%d hours, ", hours % 24) : "")
-                    + (minutes > 0 ? String.format("%d minutes, ", minutes % 60) : "")
-                    + String.format("%d seconds", seconds % 60);
-                    
-                statusMsg("Generation complete in " + took + ". " + (queued > 0 ? "Loading next generation job" : "Have a nice day!") + queuedtext);
-                if (debug) printDebug();
-                return true;
+                statusMsg("Warning: Unable to write metrics to " + this.metricsfile + ", no longer exporting them: " + e.getMessage());
+                this.metricsfile = null;
             }
-            else
-                statusMsg(statusmsg);
-            
-            //
-            // Load Chunks
-            //
-            if (this.forceregeneration)
+        }
+        
+        // Done with this generation, or the plugin is going away
+        public void releaseMetrics()
+        {
+            this.exportMetrics(true);
+            this.metrics.unregister();
+        }
+        
+        // Give up on the region being loaded or lit and unload it. It won't
+        // have been journaled as done, so it's redone if this generation
+        // resumes.
+        public void releaseLighting()
+        {
+            if (this.loading || this.lighting)
             {
-                
-                // Force unload the area first, so all blocks only get populators
-                // run on them from their newly generated counterparts.
-                Iterator<GenerationChunk> i = chunks.iterator();
-                while (i.hasNext())
-                {
-                    GenerationChunk gc = i.next();
-		    gc.kickPlayers("The region you are in was regenerated. Please rejoin");
-		    gc.unload(true);
-                }
+                for (int i = 0; i < this.region.size(); i++)
+                    this.unloadChunk(this.region.get(i), true);
             }
-            Iterator<GenerationChunk> iter = chunks.iterator();
-	    ArrayDeque<GenerationChunk> rim = new ArrayDeque<GenerationChunk>();
-            while (iter.hasNext())
+            this.region.clear();
+            this.loading = false;
+            this.lighting = false;
+            // Finished with, just not unloaded yet
+            while (this.tounload.size() > 0)
+                this.unloadChunk(this.tounload.poll(), true);
+            if (this.engine != null)
             {
-                GenerationChunk c = iter.next();
-		// In force regeneration mode, we will load everything but the outer edge first, then load (not
-		// regenerate) that outer rim so populators trigger. Unless we're right at the edge of the requested
-		// generation area, those chunks will be non-edge-chunks in a QueuedRegion adjacent to this, due to
-		// overlap = 2
-		if (!this.forceregeneration || !c.isEdgeChunk())
-		{
-		    c.load(this.forceregeneration);
-		}
-		else
-		{
-		    rim.push(c);
-		}
+                this.engine.shutdown();
+                this.engine = null;
             }
-
-	    // Now load rim if necessary
-	    iter = rim.iterator();
-	    while (iter.hasNext())
-	    {
-		iter.next().load(false);
-	    }
-	    
-            //
-            // Lighting
-            //
-            if (this.fixlighting != GenerationLighting.NONE)
+            this.snapshotpos = -1;
+            this.snapshots.clear();
+            this.lightingleft = 0;
+            this.unsnapshotted.clear();
+        }
+        
+        // Called every tick. Carries on with the region in progress, loading
+        // the next slice of it, lighting it or unloading it.
+        public void runSlice()
+        {
+            if (this.loading)
+                this.loadSlice(this.slicequota);
+            else if (this.lighting)
+                this.runLighting();
+            else if (this.tounload.size() > 0)
+                this.unloadSlice(this.slicequota);
+        }
+        
+        // Lights chunks of the last region until this tick's share of the
+        // budget is used up, and finishes the region off once they're all
+        // done.
+        private void runLighting()
+        {
+            long start = System.nanoTime();
+            // Leave the server more room if it's already struggling
+            double budget = tickMonitor.getTPS() < 19 ? this.lightbudget / 2 : this.lightbudget;
+            long deadline = start + (long)(budget * 1000000);
+            this.lightticks++;
+            
+            if (this.engine != null)
+                this.runParallelLighting(deadline);
+            else
             {
-                iter = chunks.iterator();
-                while (iter.hasNext())
+                // Always at least one, so we get there eventually
+                do
                 {
-                    GenerationChunk c = iter.next();
+                    int i = this.nextUnlit();
+                    if (i < 0) break;
+                    long c = this.region.get(i);
+                    this.region.set(i, c | ChunkList.LIT);
                     try
                     {
-                        c.fixLighting(fixlighting == GenerationLighting.EXTREME);
+                        if (fixlighting == GenerationLighting.AUDIT)
+                            this.auditLighting(c);
+                        else
+                        {
+                            if (this.fixLighting(c, fixlighting == GenerationLighting.EXTREME))
+                                this.changed.set(ChunkList.getX(c), ChunkList.getZ(c));
+                            this.metrics.count(GenerationMetrics.Counter.LIT);
+                        }
                     }
                     catch (Exception e)
                     {
@@ -415,607 +567,2625 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                         else
                             statusMsg("Error: Error in CraftBukkit while generating lighting (probably an unsupported minecraft version). Disabling lighting for this generation.");
                         this.fixlighting = GenerationLighting.NONE;
+                        this.lightpos = this.region.size();
                     }
-                }
-            }
-
-            //
-            // Cleanup Chunks
-            //
-            while (chunks.size() > 0)
-            {
-                chunks.pop().unload();
+                } while (System.nanoTime() < deadline);
             }
             
-            if (debug) this.printDebug(now);
+            this.metrics.time(GenerationMetrics.Phase.LIGHTING, start);
             
-            return false;
+            if (this.nextUnlit() < 0 && this.snapshotpos < 0 && this.lightingleft == 0 && this.unsnapshotted.size() == 0)
+            {
+                if (this.auditfixed.size() > 0)
+                {
+                    int n = this.auditfixed.size();
+                    String list = "";
+                    for (int i = 0; i < Math.min(n, 8); i++)
+                        list += (i > 0 ? "; " : "") + this.auditfixed.get(i);
+                    statusMsg("Fixed broken lighting in " + n + " chunks: " + list + (n > 8 ? " and " + (n - 8) + " more" : ""));
+                    this.auditfixed.clear();
+                }
+                if (debug) statusMsg("-- Lighting took " + this.lightticks + " ticks, " + String.format("%.2f", (double)(System.nanoTime() - this.lightstart) / 1000000) + "ms");
+                this.lighting = false;
+                this.finishRegion();
+            }
         }
         
-        // Returns number of chunks queued
-        public int addCircularRegion(World world, int xCenter, int zCenter, int radius)
+        // The next chunk of the region the lighting stage has to do, or -1.
+        // Chunks on the edge of the region don't have all their neighbors
+        // loaded, and fixLighting would skip them anyway.
+        private int nextUnlit()
         {
-            return this._addRegion(_toChunk(xCenter - radius), _toChunk(zCenter - radius), _toChunk(xCenter + radius), _toChunk(zCenter + radius), _toChunk(xCenter), _toChunk(zCenter), _toChunk(radius));
+            while (this.lightpos < this.region.size())
+            {
+                long c = this.region.get(this.lightpos);
+                if (!ChunkList.is(c, ChunkList.EDGE) && !ChunkList.is(c, ChunkList.LIT))
+                    return this.lightpos;
+                this.lightpos++;
+            }
+            return -1;
         }
-        // Returns number of chunks queued
-        public int addSquareRegion(World world, int xStart, int zStart, int xEnd, int zEnd)
+        
+        // /lighting:audit, relight a chunk only if its light data looks
+        // broken
+        private void auditLighting(long c) throws Exception
         {
-            return this._addRegion(_toChunk(xStart), _toChunk(zStart), _toChunk(xEnd), _toChunk(zEnd), 0, 0, 0);
+            ChunkSnapshot snap = this.getSnapshot(c);
+            if (snap == null) return;
+            this.metrics.count(GenerationMetrics.Counter.AUDITED);
+            this.fixAudited(c, this.getAudit().check(snap));
         }
         
-        // Returns number of chunks queued
-        // values are in *chunk coordinates* (see _toChunk)
-        private int _addRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius)
+        private LightingAudit getAudit()
         {
-            if (debug) statusMsg("-- Preparing to generate region, in chunk coordinates: xStart: " + xStart + ", zStart: " + zStart + " xEnd: " + xEnd + ", zEnd: " + zEnd + ", xCenter: " + xCenter + ", zCenter: " + zCenter + ", radius: " + radius);
-            if (xStart > xEnd || zStart > zEnd || radius < 0)
-                return 0;
-            
-            // Break into regions
-            
-            // Regions need to overlap by 2 so block populators
-            // and lighting can run. (edge chunks wont work in either)
-            int overlap = 2;
-            
-            int zNext = zStart;
-            int xNext = xStart;
-            
-            while (zNext <= zEnd)
+            if (this.audit == null)
             {
-                if (zNext == zStart) zNext += overlap;
-                if (xNext == xStart) xNext += overlap;
-                
-                int x1 = xNext - overlap;
-                int x2 = Math.min(x1 + regionsize - 1, xEnd);
-                int z1 = zNext - overlap;
-                int z2 = Math.min(z1 + regionsize - 1, zEnd);
-                
-                queuedregions.add(new QueuedRegion(x1, z1, x2, z2, xCenter, zCenter, radius));
-                this.totalregions++;
-                
-                xNext = x2 + 1;
-                
-                if (xNext > xEnd)
-                {
-                    xNext = xStart + overlap;
-                    zNext = z2 + 1;
-                }
+                this.audit = new LightingAudit(nms, this.getMaxHeight(), this.backend.hasSky());
+                if (!this.audit.isUseful())
+                    statusMsg("Warning: Unrecognized CraftBukkit build, there's nothing /lighting:audit can check in a world without a sky.");
             }
-            return (xEnd - xStart + 1) * (zEnd - zStart + 1);
+            return this.audit;
         }
         
-        private int _toChunk(int worldCoordinate)
+        // Relight an audited chunk if the audit found a problem with it
+        private void fixAudited(long c, String problem) throws Exception
         {
-            // -1 through -16 are chunk -1,
-            // 0 through 15 are chunk 0,
-            // 16 through 32 are chunk 1...
-            if (worldCoordinate < 0)
-                return (worldCoordinate + 1)/16 - 1;
-            else
-                return worldCoordinate/16;
+            if (problem == null || !this.fixLighting(c, true)) return;
+            int x = ChunkList.getX(c), z = ChunkList.getZ(c);
+            this.changed.set(x, z);
+            this.metrics.count(GenerationMetrics.Counter.LIT);
+            this.metrics.count(GenerationMetrics.Counter.BROKEN);
+            this.auditfixed.add(x + ", " + z);
+            if (debug) statusMsg("-- Relit chunk " + x + ", " + z + ": " + problem);
+        }
+        
+        private int getMaxHeight()
+        {
+            try { return this.backend.getMaxHeight(); }
+            catch (Throwable e) { return 128; } // Older bukkit
         }
         
-        private class QueuedRegion
+        // /lighting:audit with lightthreads > 0. Snapshots are taken here
+        // and checked by the workers, and only the chunks they find broken
+        // are relit, on the main thread.
+        private void runParallelAudit(long deadline)
         {
-            private int xStart, zStart, xEnd, zEnd, xCenter, zCenter, radius;
-            QueuedRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius)
+            // Hand out every chunk first, a few a tick
+            while (this.snapshotpos >= 0)
             {
-                this.xCenter = xCenter;
-                this.zCenter = zCenter;
-                this.xStart = xStart;
-                this.zStart = zStart;
-                this.xEnd = xEnd;
-                this.zEnd = zEnd;
-                this.radius = radius;
+                int i = this.nextUnlit();
+                if (i < 0)
+                {
+                    this.snapshotpos = -1;
+                    break;
+                }
+                this.lightpos++;
+                long c = this.region.get(i);
+                ChunkSnapshot snap = this.getSnapshot(c);
+                if (snap == null)
+                    this.region.set(i, c | ChunkList.LIT);
+                else
+                {
+                    this.metrics.count(GenerationMetrics.Counter.AUDITED);
+                    this.lightingleft++;
+                    this.engine.submitAudit(snap, this.getAudit());
+                }
+                if (System.nanoTime() >= deadline)
+                    return;
             }
             
-            public ArrayDeque<GenerationChunk> getChunks(World world)
+            LightingEngine.Result r;
+            while (System.nanoTime() < deadline && (r = this.engine.poll()) != null)
             {
-                ArrayDeque<GenerationChunk> ret = new ArrayDeque<GenerationChunk>();
-                int x = xStart, z = zStart;
-                while (z <= zEnd)
+                this.lightingleft--;
+                int i = this.region.indexOf(r.getX(), r.getZ());
+                if (i < 0) continue;
+                long c = this.region.get(i);
+                this.region.set(i, c | ChunkList.LIT);
+                if (r.getError() != null)
                 {
-                    // Skip chunks outside circle radius
-                    if ((radius == 0) || (radius >= Math.sqrt((Math.pow(Math.abs(x - xCenter),2) + Math.pow(Math.abs(z - zCenter),2)))))
-		    {
-			boolean edge = (x == this.xStart) || (z == this.zStart) || (x == this.xEnd) || (z == this.zEnd);
-                        ret.push(new GenerationChunk(x, z, world, edge));
-		    }
-                    
-                    x++;
-                    if (x > xEnd)
-                    {
-                        x = xStart;
-                        z++;
-                    }
+                    statusMsg("Warning: Failed to audit lighting for chunk " + r.getX() + ", " + r.getZ() + ", leaving it as it is. (" + r.getError() + ")");
+                    continue;
+                }
+                try
+                {
+                    this.fixAudited(c, r.getProblem());
+                }
+                catch (Exception e)
+                {
+                    // As runLighting does
+                    statusMsg("Error: Error in CraftBukkit while generating lighting (probably an unsupported minecraft version). Disabling lighting for this generation.");
+                    this.fixlighting = GenerationLighting.NONE;
+                    this.engine.shutdown();
+                    this.engine = null;
+                    this.lightingleft = 0;
+                    this.lightpos = this.region.size();
+                    return;
                 }
-                return ret.size() > 0 ? ret : null;
             }
-            
-            // Chunks this represents
-            public int getSize() { return (xEnd - xStart + 1) * (zEnd - zStart + 1); }
         }
-    }
-    private class GenerationChunk
-    {
-        private int x, z;
-        private World world;
-        private Chunk chunk;
-        private boolean wascreated;
-	private boolean edge;
-        GenerationChunk(int x, int z, World world, boolean edge)
-	{
-	    this.x = x;
-	    this.z = z;
-	    this.world = world;
-	    this.wascreated = false;
-	    this.edge = edge;
-	}
-        public int getX() { return x; }
-        public int getZ() { return z; }
-        public boolean wasCreated() { return this.wascreated; }
-        public boolean isEdgeChunk() { return this.edge; }
-        public int kickPlayers(String msg)
+        
+        private void runParallelLighting(long deadline)
         {
-            int kicked = 0;
-            if (world.isChunkLoaded(this.x, this.z))
+            if (this.fixlighting == GenerationLighting.AUDIT)
             {
-                for (Entity ent:world.getChunkAt(this.x, this.z).getEntities())
-                    if (ent instanceof Player)
-                    {
-                        ((Player)ent).kickPlayer(msg);
-                        kicked++;
-                    }
+                this.runParallelAudit(deadline);
+                return;
             }
-            return kicked;
-        }
-        
-        // Try to call the craftbukkit lighting update.
-        // This will throw exceptions if: Server isn't craftbukkit, craftbukkit isn't the expected version, craftbukkit has an error...
-        // *catch exceptions* if you don't want to assume we're running on compatible craftbukkit.
-        public void fixLighting(boolean force)
-        {
-            if (this.chunk == null) return;
-            
-            if (WorldGenerationControl.lightingFixMethod instanceof Method)
+            // Snapshot the whole region first, a few chunks a tick
+            if (this.snapshotpos >= 0)
             {
-                // initLighting 'resets' the lighting for a chunk, doing fast lighting on everything and marking them all as needing full lighting
-                // Don't do it on chunks without their adjacents loaded, since the h() will then fail to fix them and we're actually breaking
-                // potentially good lighting.
-                
-                net.minecraft.server.Chunk rawchunk = ((CraftChunk)this.chunk).getHandle();
-
-		// We skip the edge chunks - with overlap=2, they will be a non-edge chunk in at least one region,
-		// where we can also guarantee their peers are loaded for proper loading
-                if (force && !this.edge)
+                while (this.snapshotpos < this.region.size())
                 {
-                    rawchunk.initLighting();
-		    try
-		    {
-			WorldGenerationControl.lightingFixMethod.invoke(rawchunk);
-		    }
-		    catch (Exception e)
-		    {
-			// This shouldn't happen, as we checked access earlier.
-			statusMsg("ERROR: Lighting failure. /lighting will not function - likely due to an unsupported CraftBukkit version");
-		        WorldGenerationControl.lightingFixMethod = null;
-		    }
+                    long c = this.region.get(this.snapshotpos++);
+                    ChunkSnapshot snap = this.getSnapshot(c);
+                    if (snap != null)
+                        this.snapshots.put(chunkKey(ChunkList.getX(c), ChunkList.getZ(c)), snap);
+                    if (System.nanoTime() >= deadline)
+                        break;
                 }
+                if (this.snapshotpos < this.region.size())
+                    return;
+                
+                // Every chunk we light has its neighbors in the region, but
+                // the server may have unloaded some of them since
+                for (int i; (i = this.nextUnlit()) >= 0; this.lightpos++)
+                {
+                    long c = this.region.get(i);
+                    int x = ChunkList.getX(c), z = ChunkList.getZ(c);
+                    ChunkSnapshot[][] area = new ChunkSnapshot[3][3];
+                    boolean complete = true;
+                    for (int dx = -1; dx <= 1; dx++)
+                        for (int dz = -1; dz <= 1; dz++)
+                            if ((area[dx + 1][dz + 1] = this.snapshots.get(chunkKey(x + dx, z + dz))) == null)
+                                complete = false;
+                    if (area[1][1] == null)
+                        continue;
+                    if (!complete)
+                    {
+                        this.unsnapshotted.add(c);
+                        continue;
+                    }
+                    this.lightingleft++;
+                    this.engine.submit(area);
+                }
+                this.snapshots.clear();
+                this.snapshotpos = -1;
+            }
+            
+            // The server loads whatever neighbors these need itself
+            while (this.unsnapshotted.size() > 0 && System.nanoTime() < deadline)
+            {
+                long c = this.unsnapshotted.poll();
+                try
+                {
+                    if (this.fixLighting(c, true))
+                        this.changed.set(ChunkList.getX(c), ChunkList.getZ(c));
+                    this.metrics.count(GenerationMetrics.Counter.LIT);
+                }
+                catch (Exception e)
+                {
+                    statusMsg("Error: Error in CraftBukkit while generating lighting (probably an unsupported minecraft version). Some chunks were left unlit.");
+                    this.unsnapshotted.clear();
+                    break;
+                }
+                int i = this.region.indexOf(ChunkList.getX(c), ChunkList.getZ(c));
+                if (i >= 0)
+                    this.region.set(i, this.region.get(i) | ChunkList.LIT);
+            }
+            
+            // Write back whatever the workers have finished
+            LightingEngine.Result r;
+            while (System.nanoTime() < deadline && (r = this.engine.poll()) != null)
+            {
+                this.lightingleft--;
+                int i = this.region.indexOf(r.getX(), r.getZ());
+                if (i < 0) continue;
+                long c = this.region.get(i);
+                if (r.getError() != null)
+                {
+                    statusMsg("Warning: Failed to work out lighting for chunk " + r.getX() + ", " + r.getZ() + ", leaving it to the server instead. (" + r.getError() + ")");
+                    this.unsnapshotted.add(c);
+                    continue;
+                }
+                try
+                {
+                    if (ChunkList.is(c, ChunkList.LOADED) && this.backend.isChunkLoaded(r.getX(), r.getZ()))
+                        this.backend.applyLighting(this.engine, r);
+                    if (r.getChanges() > 0)
+                        this.changed.set(r.getX(), r.getZ());
+                    this.metrics.count(GenerationMetrics.Counter.LIT);
+                    this.region.set(i, c | ChunkList.LIT);
+                }
+                catch (Exception e)
+                {
+                    // Fall back to the server's own relighting for the rest,
+                    // this chunk included
+                    statusMsg("Warning: Unable to write lighting for this CraftBukkit version, falling back to slower lighting. (" + e + ")");
+                    this.engine.shutdown();
+                    this.engine = null;
+                    this.lightthreads = 0;
+                    // Whatever the workers hadn't got back to us with
+                    this.lightingleft = 0;
+                    this.unsnapshotted.clear();
+                    this.lightpos = 0;
+                    return;
+                }
+            }
+        }
+        
+        // Unload (or keep) a region's chunks once we're done with them
+        private void finishRegion()
+        {
+            // Regenerating relies on unloading everything first, so don't try
+            // to be clever there.
+            boolean retain = this.retaincap > 0 && !this.forceregeneration
+                             && this.planners.size() > 0 && this.planners.peek().peek(this.nextbounds);
+            for (int i = 0; i < this.region.size(); i++)
+            {
+                long c = this.region.get(i);
+                int x = ChunkList.getX(c), z = ChunkList.getZ(c);
+                if (retain && this.retained.size() < this.retaincap
+                    && x >= this.nextbounds[0] && z >= this.nextbounds[1]
+                    && x <= this.nextbounds[2] && z <= this.nextbounds[3])
+                {
+                    this.retained.add(c);
+                    this.metrics.count(GenerationMetrics.Counter.RETAINED);
+                }
+                else
+                    this.tounload.add(c);
+            }
+            this.region.clear();
+            this.pruneChanged();
+            // Unloading goes in slices too, unless loading didn't
+            if (this.slicequota >= this.tounload.size())
+                this.unloadSlice(this.slicequota);
+        }
+        
+        // Forget changes in pages (region files) no chunk we'll unload from
+        // here on is in or next to: not one still to be unloaded or retained
+        // from this region, and not one later regions can reach. Without this
+        // changed would cover the whole generation, and grow for as long as
+        // /genfollow runs.
+        private void pruneChanged()
+        {
+            final int[] bounds = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+            for (int i = 0; i < this.tounload.size() + this.retained.size(); i++)
+            {
+                long c = i < this.tounload.size() ? this.tounload.get(i) : this.retained.get(i - this.tounload.size());
+                int px = ChunkList.getX(c) >> 5, pz = ChunkList.getZ(c) >> 5;
+                bounds[0] = Math.min(bounds[0], px);
+                bounds[1] = Math.min(bounds[1], pz);
+                bounds[2] = Math.max(bounds[2], px);
+                bounds[3] = Math.max(bounds[3], pz);
+            }
+            this.changed.retainPages(new ChunkBitSet.PageFilter()
+            {
+                public boolean keep(int px, int pz)
+                {
+                    if (px >= bounds[0] - 1 && pz >= bounds[1] - 1 && px <= bounds[2] + 1 && pz <= bounds[3] + 1)
+                        return true;
+                    // The page and the chunks around it
+                    int x1 = (px << 5) - 1, z1 = (pz << 5) - 1, x2 = (px << 5) + 32, z2 = (pz << 5) + 32;
+                    if (follow != null)
+                        return follow.reaches(x1, z1, x2, z2);
+                    boolean first = true;
+                    for (RegionPlanner p:planners)
+                    {
+                        // Later shapes haven't started, anything they cover is ahead
+                        if (first ? !p.isBehind(x1, z1, x2, z2)
+                            : x2 >= p.getXStart() && z2 >= p.getZStart() && x1 <= p.getXEnd() && z1 <= p.getZEnd())
+                            return true;
+                        first = false;
+                    }
+                    return false;
+                }
+            });
+        }
+        
+        private void unloadSlice(int quota)
+        {
+            int n = Math.min(quota, this.tounload.size());
+            long start = System.nanoTime();
+            // Rewriting chunks exactly as they were on disk is a waste of the
+            // server's write bandwidth
+            this.tosave.clear();
+            for (int i = 0; i < n; i++)
+            {
+                long c = this.tounload.poll();
+                if (this.needsSave(c))
+                    this.tosave.add(c);
+                else
+                {
+                    this.unloadChunk(c, false);
+                    this.metrics.count(GenerationMetrics.Counter.UNCHANGED);
+                    this.metrics.count(GenerationMetrics.Counter.UNSAVED_BYTES, this.backend.getStoredSize(ChunkList.getX(c), ChunkList.getZ(c)));
+                }
+            }
+            this.metrics.time(GenerationMetrics.Phase.UNLOAD, start);
+            // With /forceKeepUp, write them out ourselves rather than have
+            // runStep save the whole world
+            boolean written = this.forcekeepup && this.cansavechunks && this.writeChunks(this.tosave);
+            start = System.nanoTime();
+            for (int i = 0; i < this.tosave.size(); i++)
+                this.unloadChunk(this.tosave.get(i), !written);
+            this.tosave.clear();
+            this.metrics.count(GenerationMetrics.Counter.UNLOADED, n);
+            this.metrics.time(GenerationMetrics.Phase.UNLOAD, start);
+            if (this.tounload.size() > 0)
+                return;
+            
+            // Chunks we unload are handed to the server's async chunk writer,
+            // which can fall well behind. Only journal a position once it's
+            // had a while to catch up, so a crash can cost us a few regions
+            // of redone work but never land that didn't get saved.
+            if (this.spec != null)
+            {
+                long now = System.nanoTime();
+                if (this.journalstate == null || now - this.journalstatetime > 10000000000L)
+                {
+                    if (this.journalstate != null)
+                        journalProgress(this, this.journalstate);
+                    this.journalstate = this.getState();
+                    this.journalstatetime = now;
+                }
+            }
+        }
+        
+        // Whether unloading a chunk should save it. With /lighting:normal
+        // the server works out light for everything we load, so that's
+        // everything. Chunks somebody else had loaded might have changes of
+        // their own.
+        private boolean needsSave(long c)
+        {
+            if (this.fixlighting == GenerationLighting.NORMAL || ChunkList.is(c, ChunkList.WASLOADED))
+                return true;
+            int cx = ChunkList.getX(c), cz = ChunkList.getZ(c);
+            for (int x = cx - 1; x <= cx + 1; x++)
+                for (int z = cz - 1; z <= cz + 1; z++)
+                    if (this.changed.get(x, z))
+                        return true;
+            return false;
+        }
+        
+        // Write chunks to disk now, a region file at a time so each file is
+        // written in one go. Returns false if this server can't, in which
+        // case runStep goes back to saving the whole world.
+        //
+        // chunks come in the order regions list them, by row, so rather than
+        // sorting them this goes through each band of 32 rows once for every
+        // region file it crosses.
+        private boolean writeChunks(ChunkList chunks)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                int band = 0;
+                while (band < chunks.size())
+                {
+                    int pz = ChunkList.getZ(chunks.get(band)) >> 5, end = band;
+                    int px1 = Integer.MAX_VALUE, px2 = Integer.MIN_VALUE;
+                    for (; end < chunks.size() && ChunkList.getZ(chunks.get(end)) >> 5 == pz; end++)
+                    {
+                        px1 = Math.min(px1, ChunkList.getX(chunks.get(end)) >> 5);
+                        px2 = Math.max(px2, ChunkList.getX(chunks.get(end)) >> 5);
+                    }
+                    for (int px = px1; px <= px2; px++)
+                    {
+                        boolean any = false;
+                        for (int i = band; i < end; i++)
+                        {
+                            long c = chunks.get(i);
+                            if (ChunkList.getX(c) >> 5 != px) continue;
+                            if (ChunkList.is(c, ChunkList.LOADED))
+                                this.backend.saveChunk(ChunkList.getX(c), ChunkList.getZ(c));
+                            any = true;
+                        }
+                        if (any)
+                            this.backend.flushChunks();
+                    }
+                    band = end;
+                }
+            }
+            catch (Exception e)
+            {
+                if (debug) statusMsg("-- Unable to save single chunks on this CraftBukkit build, saving the whole world instead (" + e + ")");
+                this.cansavechunks = false;
+                return false;
+            }
+            this.metrics.time(GenerationMetrics.Phase.SAVE, start);
+            return true;
+        }
+        
+        // With no lighting to do and nothing to regenerate, chunks that are
+        // already on disk don't need loading at all. Find out which those are
+        // in the background.
+        private void startExistingScan()
+        {
+            if (this.fixlighting != GenerationLighting.NONE || this.forceregeneration || this.planners.size() == 0)
+                return;
+            int x1 = Integer.MAX_VALUE, z1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, z2 = Integer.MIN_VALUE;
+            for (RegionPlanner p:this.planners)
+            {
+                x1 = Math.min(x1, p.getXStart());
+                z1 = Math.min(z1, p.getZStart());
+                x2 = Math.max(x2, p.getXEnd());
+                z2 = Math.max(z2, p.getZEnd());
+            }
+            File regions = this.backend.getRegionFolder();
+            if (regions == null) return;
+            this.existing = new RegionFileScanner(regions, x1, z1, x2, z2);
+            getServer().getScheduler().scheduleAsyncDelayedTask(WorldGenerationControl.this, this.existing);
+        }
+        
+        // Copy the region files we're about to regenerate in the background,
+        // along with the ones next to the area, which population spills into.
+        // One taken before a restart is kept as it was.
+        private void startSnapshot()
+        {
+            if (!this.forceregeneration || this.snapshotfolder == null || this.planners.size() == 0)
+                return;
+            File regions = this.backend.getRegionFolder();
+            if (regions == null)
+            {
+                this.snapshoterror = "the world's region folder wasn't found";
+                return;
+            }
+            try
+            {
+                this.snapshot = RegionSnapshot.open(this.snapshotfolder);
+                if (this.snapshot != null)
+                    return;
+                // Whatever is there never finished
+                RegionSnapshot.delete(this.snapshotfolder);
+            }
+            catch (IOException e)
+            {
+                this.snapshoterror = e.getMessage();
+                return;
+            }
+            
+            HashMap<Long, int[]> touched = new HashMap<Long, int[]>();
+            for (RegionPlanner p:this.planners)
+                for (int z = p.getZStart(); z <= p.getZEnd(); z++)
+                {
+                    int[] spans = p.getShape().getSpans(z);
+                    for (int i = 0; i < spans.length; i += 2)
+                        for (int rz = (z - 1) >> 5; rz <= (z + 1) >> 5; rz++)
+                            for (int rx = (spans[i] - 1) >> 5; rx <= (spans[i + 1] + 1) >> 5; rx++)
+                                if (!touched.containsKey(chunkKey(rx, rz)))
+                                    touched.put(chunkKey(rx, rz), new int[] { rx, rz });
+                }
+            // Get what the server is holding onto disk first, best we can.
+            // save() only queues chunks for the server's writer thread.
+            try
+            {
+                this.backend.save();
+                this.backend.flushChunks();
+            }
+            catch (Exception e) {}
+            statusMsg("Backing up the " + touched.size() + " region files generation #" + this.id + " will regenerate, so /genrestore can undo it...");
+            this.snapshotstart = System.nanoTime();
+            this.snapshot = new RegionSnapshot(this.snapshotfolder, this.backend.getName(), regions, touched.values());
+            getServer().getScheduler().scheduleAsyncDelayedTask(WorldGenerationControl.this, this.snapshot);
+        }
+        
+        // Under memory pressure take smaller regions, or where the planner
+        // can't (or they're already small) only step every other time.
+        // Returns true if this step should be skipped.
+        private boolean memoryThrottle(boolean shrink)
+        {
+            RegionPlanner first = this.planners.peek();
+            int size = this.regionsize;
+            if (shrink)
+            {
+                if (first == null || !first.isResizable() || size / 2 < AdaptiveSpeed.MIN_REGIONSIZE)
+                {
+                    this.memskip = !this.memskip;
+                    return this.memskip;
+                }
+                size /= 2;
+            }
+            this.memskip = false;
+            // Takes effect at the start of the next row
+            for (RegionPlanner p:this.planners)
+                if (p.isResizable() && p.getRegionSize() != size)
+                    p.setRegionSize(size);
+            return false;
+        }
+        
+        private void printDebug() { this.printDebug(-1); }
+        private void printDebug(long since)
+        {
+            String memstr = getMemory().describe();
+            String elapsed = since < 0 ? "" : String.format("%.2f", (double)(System.nanoTime() - since) / 1000000) + "ms elapsed. ";
+            // It'll always be 0 in allatonce mode since we force-clean it --v
+            int ticksize = this.backend.getPendingTicks();
+            String tickstr = ticksize > 0 ? " - NextTickList at " + ticksize + " entries" : "";
+            statusMsg("-- " + elapsed + this.backend.getLoadedChunkCount() + " chunks now loaded - " + memstr + tickstr);
+        }
+        
+        // returns true if complete
+        // queued is number of generations the plugin intends to run after this
+        // or -1 if the plugin intends to shutdown the server after this!
+        public boolean runStep(int queued)
+        {
+            long now = System.nanoTime();
+            if (this.starttime == 0)
+            {
+                this.starttime = System.nanoTime();
+                this.startExistingScan();
+                this.startSnapshot();
+                this.metrics.register();
+            }
+            // Nothing is regenerated until the snapshot is safely taken
+            if (this.snapshotfolder != null && !this.snapshotdone)
+            {
+                if (this.snapshot != null && !this.snapshot.isDone())
+                    return false;
+                if (this.snapshoterror == null && this.snapshot != null)
+                    this.snapshoterror = this.snapshot.getError();
+                if (this.snapshoterror != null)
+                {
+                    statusMsg("Unable to back up the region files generation #" + this.id + " would regenerate, so it won't: " + this.snapshoterror
+                              + ". Use /noSnapshot to regenerate without a backup.");
+                    this.releaseMetrics();
+                    return true;
+                }
+                this.snapshotdone = true;
+                if (this.snapshot != null && this.snapshotstart != 0)
+                    statusMsg("Backed up " + this.snapshot.getFileCount() + " region files (" + String.format("%.1f", this.snapshot.getBytes() / 1048576.0) + "MiB) in "
+                              + String.format("%.1f", (System.nanoTime() - this.snapshotstart) / 1000000000.0) + " seconds, /genrestore " + this.id + " puts them back.");
+            }
+            // The last region is still being loaded or lit, which also covers
+            // the lighting left over when the generation runs out of regions
+            if (!this.isBetweenRegions())
+                return false;
+            if (debug && this.existing != null && !this.reportedexisting && this.existing.isDone())
+            {
+                this.reportedexisting = true;
+                if (this.existing.getError() != null)
+                    statusMsg("-- Failed to scan region files for existing chunks: " + this.existing.getError());
+                else
+                    statusMsg("-- Scanned " + this.existing.getScannedFiles() + " region files, " + this.existing.getExistingCount() + " chunks already exist");
+            }
+            
+            // Status message
+            String queuedtext = "";
+            if (queued > 0)
+                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.GRAY + queued + " generations in queue" + ChatColor.DARK_GRAY + "}";
+            if (queued == -1)
+                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.DARK_RED + "shutdown scheduled" + ChatColor.DARK_GRAY + "}";
+
+            if (this.forcekeepup && this.cansave)
+            {
+                // See if we can fix the NextTickList leak, otherwise it can
+                // mean lots of useless idle time while the server catches up
+                // slowly, see: https://github.com/Bukkit/CraftBukkit/pull/501
+                try
+                {
+                    // In CB1.1 processing will ramp up as the list grows to 5% of the list per tick
+                    // but equilibrium isn't reached until the millions, so this is still of use for
+                    // users with memory concerns.
+                    this.backend.catchUpTicks(this.speed == GenerationSpeed.ALLATONCE ? 0 : 200000);
+                }
+                catch (Exception e)
+                {
+                    // Probably CB version mismatch.
+                    if (debug) statusMsg("-- Warning: Failed to force server to keep up on ticklist processing. Probably unknown CraftBukkit version :(");
+                }
+                // In 1.9+ the async chunk loader takes its sweet fuckin' time.
+                // Our chunks are written as they're unloaded (writeChunks), only
+                // save the whole world if this server won't let us do that.
+                if (!this.cansavechunks)
+                {
+                    try
+                    {
+                        long savestart = System.nanoTime();
+                        this.backend.save();
+                        this.metrics.time(GenerationMetrics.Phase.SAVE, savestart);
+                    }
+                    catch (Exception e)
+                    {
+                        statusMsg("Warning: Unrecognized CraftBukkit build, cannot force saving. Async chunk loader will slow things down!");
+                        this.cansave = false;
+                    }
+                }
+            }
+            
+            // Check memory. Until we have better incremental generation, each
+            // step needs a good chunk of it to not crash and burn.
+            String nag = null;
+            MemoryGovernor.Level memory = getMemory().check();
+            if (debug && memory != this.memory)
+                statusMsg("-- Memory pressure " + this.memory + " -> " + memory + ": " + getMemory().describe());
+            this.memory = memory;
+            if (memory == MemoryGovernor.Level.PAUSE)
+                nag = "Insufficient free memory (" + getMemory().describe() + ") -- taking a break to let the server catch up";
+            
+            // Check for /onlyWhenEmpty
+            if (this.onlywhenempty && this.backend.hasPlayers())
+                nag = "Paused while players are present";
+            
+            // Status message, only put together if it's going to be sent
+            boolean showstatus = now - this.laststatus >= this.statusinterval;
+            String prefix = null;
+            int region = 0, totalregions = 0;
+            if (showstatus || (nag != null && this.lastnag + 300000000000L < now))
+            {
+                int passed = 0;
+                for (RegionPlanner p:this.planners)
+                {
+                    passed += p.getPassed();
+                    totalregions += p.getPassed() + p.getRemaining();
+                }
+                double pct = totalregions > 0 ? (double)passed / totalregions : 1;
+                region = passed + 1;
+                String done = this.follow != null ? "following" : String.format("%.2f", 100*pct) + "%";
+                prefix = ChatColor.DARK_GRAY + "[" + ChatColor.GOLD + done + ChatColor.DARK_GRAY + "]" + ChatColor.GRAY + " ";
+                // Say which, when there's more than one going
+                if (runningRegions.size() > 1)
+                    prefix += ChatColor.WHITE + "#" + this.id + " " + this.backend.getName() + ChatColor.GRAY + " ";
+            }
+            
+            if (nag != null)
+            {
+                // Should bail out
+                if (this.lastnag + 300000000000L < now)
+                {
+                    this.lastnag = now;
+                    statusMsg(prefix + nag + queuedtext);
+                }
+                if (this.lastdebugnag + 3000000000L < now)
+                {
+                    if (debug) printDebug();
+                    this.lastdebugnag = now;
+                }
+                return false;
+            }
+            else
+                this.lastnag = 0;
+            
+            if (this.memoryThrottle(memory == MemoryGovernor.Level.SHRINK))
+                return false;
+            
+            // Compute this before advancing to the next region
+            String statusmsg = null;
+            if (showstatus && this.follow != null)
+                statusmsg = prefix + ChatColor.GRAY + "Generating ahead of " + ChatColor.WHITE + this.follow.getPlayerCount() + ChatColor.GRAY + " players" + queuedtext;
+            else if (showstatus)
+                statusmsg = prefix + ChatColor.GRAY + "Section " + ChatColor.WHITE + region + ChatColor.GRAY + "/" + ChatColor.WHITE + totalregions + queuedtext;
+            
+            // Get next region
+            long planstart = System.nanoTime();
+            boolean found = false;
+            while (this.planners.size() > 0 && !found)
+            {
+                RegionPlanner p = this.planners.peek();
+                if (p.next())
+                    found = this.queueRegion(p.getX1(), p.getZ1(), p.getX2(), p.getZ2(), p.getShape(), this.existing);
+                else
+                {
+                    this.planners.pop();
+                    this.plannersdone++;
+                }
+                // Skipping entirely generated regions is cheap, but not free.
+                // Don't lock up the server on a huge, mostly generated job.
+                if (!found && System.nanoTime() - now > 50000000L)
+                    break;
+            }
+            if (!found && this.follow != null)
+                found = this.nextFollowRegion();
+            
+            this.metrics.time(GenerationMetrics.Phase.PLAN, planstart);
+            
+            if (!found && (this.planners.size() > 0 || this.follow != null))
+            {
+                // Only skipped existing regions this time, or nobody is
+                // headed anywhere that needs generating
+                this.exportMetrics(false);
+                return false;
+            }
+            else if (!found)
+            {
+                this.releaseRetained();
+                this.releaseLighting();
+                this.releaseMetrics();
+                // Generation complete
+                long millis = (System.nanoTime() - this.starttime) / 1000000;
+                long seconds = millis / 1000;
+                long minutes = seconds / 60;
+                long hours = minutes / 60;
+                long days = hours / 24;
+                String took = (days > 0 ? String.format("%d days, ", days) : "")
+                    + (hours > 0 ? String.format("%d hours, ", hours % 24) : "")
+                    + (minutes > 0 ? String.format("%d minutes, ", minutes % 60) : "")
+                    + String.format("%d seconds", seconds % 60);
+                    
+                statusMsg("Generation complete in " + took + ". " + (queued > 0 ? "Loading next generation job" : "Have a nice day!") + queuedtext);
+                if (this.metrics.getChunksAudited() > 0)
+                    statusMsg("Checked lighting in " + this.metrics.getChunksAudited() + " chunks, " + this.metrics.getChunksBroken() + " were broken and have been relit");
+                long unchanged = this.metrics.getChunksUnchanged();
+                if (unchanged > 0)
+                    statusMsg("Left " + unchanged + " unchanged chunks as they were rather than saving them again, "
+                              + String.format("%.1f", this.metrics.getUnsavedBytes() / 1048576.0) + "MiB of writes avoided");
+                if (debug) printDebug();
+                return true;
+            }
+            else if (statusmsg != null)
+            {
+                statusMsg(statusmsg);
+                this.laststatus = now;
+            }
+            
+            long stepstart = System.nanoTime();
+            this.metrics.count(GenerationMetrics.Counter.REGIONS);
+            
+            // Anything kept from the last region that this one didn't want
+            if (this.retained.size() > 0)
+                this.releaseRetained();
+            
+            //
+            // Load Chunks
+            //
+            this.loading = true;
+            this.regionnanos = 0;
+            this.regionticks = 0;
+            if (this.forceregeneration)
+            {
+                
+                // Force unload the area first, so all blocks only get populators
+                // run on them from their newly generated counterparts.
+                for (int i = 0; i < this.region.size(); i++)
+                {
+                    long c = this.region.get(i);
+		    this.backend.kickPlayers(ChunkList.getX(c), ChunkList.getZ(c), "The region you are in was regenerated. Please rejoin");
+		    this.backend.unloadChunk(ChunkList.getX(c), ChunkList.getZ(c), false, false);
+                }
+            }
+	    // In force regeneration mode, we will load everything but the outer edge first, then load (not
+	    // regenerate) that outer rim so populators trigger. Unless we're right at the edge of the requested
+	    // generation area, those chunks will be non-edge-chunks in a region adjacent to this, due to
+	    // overlap = 2. loadSlice goes through the region twice for that, once with loadpos and once with
+	    // rimpos.
+            this.loadpos = 0;
+            this.rimpos = this.forceregeneration ? 0 : this.region.size();
+            this.regionnanos += System.nanoTime() - stepstart;
+            
+            // Spread loading and unloading over the ticks until the next region
+            // would have started anyway. /allAtOnce doesn't care about lag.
+            int size = this.region.size();
+            if (this.slicesize == 0 || this.shouldRunAllAtOnce())
+                this.slicequota = size;
+            else if (this.slicesize > 0)
+                this.slicequota = this.slicesize;
+            else
+                this.slicequota = Math.max(1, (2 * size + this.getTaskPeriod() - 1) / this.getTaskPeriod());
+            if (this.slicequota >= size)
+                this.loadSlice(this.slicequota);
+            
+            this.exportMetrics(false);
+            return false;
+        }
+        
+        // /genfollow's next region, regionsize chunks across, with the
+        // missing chunk someone will need soonest just inside its back edge
+        // so the rest covers where they're going. False if there isn't one.
+        private boolean nextFollowRegion()
+        {
+            long now = System.nanoTime();
+            this.follow.update(this.backend.getPlayerPositions(), now);
+            if (now - this.knownpruned > 10000000000L)
+            {
+                this.knownpruned = now;
+                ChunkBitSet.PageFilter reached = new ChunkBitSet.PageFilter()
+                {
+                    public boolean keep(int px, int pz) { return follow.reaches(px << 5, pz << 5, (px << 5) + 31, (pz << 5) + 31); }
+                };
+                this.known.retainPages(reached);
+                if (this.ondisk != null)
+                    this.ondisk.retainPages(reached);
+            }
+            if (this.follow.next(this.followchunks, this.followat) < 0)
+                return false;
+            int half = this.regionsize / 2, ahead = Math.max(0, half - 1);
+            int x1 = this.followat[0] - half + this.followat[2] * ahead, z1 = this.followat[1] - half + this.followat[3] * ahead;
+            int x2 = x1 + this.regionsize - 1, z2 = z1 + this.regionsize - 1;
+            // Everything in it exists once it's loaded, edges included
+            for (int z = z1; z <= z2; z++)
+                this.known.setSpan(x1, x2, z);
+            return this.queueRegion(x1, z1, x2, z2, null, null);
+        }
+        
+        // Load up to quota more chunks of the current region, and once
+        // they're all loaded move it on to lighting, or finish it.
+        private void loadSlice(int quota)
+        {
+            long start = System.nanoTime();
+            int loaded = 0, size = this.region.size();
+            for (; loaded < quota && this.loadpos < size; this.loadpos++)
+            {
+                // The rim comes after, see runStep
+                if (this.forceregeneration && ChunkList.is(this.region.get(this.loadpos), ChunkList.EDGE))
+                    continue;
+                long loadstart = System.nanoTime();
+                this.countLoad(this.loadChunk(this.loadpos, this.forceregeneration), loadstart);
+                loaded++;
+            }
+            // Now load rim if necessary
+            if (this.loadpos == size && loaded < quota && this.rimpos < size)
+            {
+                long rimstart = System.nanoTime();
+                for (; loaded < quota && this.rimpos < size; this.rimpos++)
+                {
+                    if (!ChunkList.is(this.region.get(this.rimpos), ChunkList.EDGE))
+                        continue;
+                    this.countLoad(this.loadChunk(this.rimpos, false), -1);
+                    loaded++;
+                }
+                this.metrics.time(GenerationMetrics.Phase.POPULATE, rimstart);
+            }
+            long now = this.metrics.time(GenerationMetrics.Phase.SLICE, start);
+            this.regionnanos += now - start;
+            this.regionticks++;
+            if (this.loadpos < size || this.rimpos < size)
+                return;
+            
+            this.loading = false;
+            this.metrics.record(GenerationMetrics.Phase.STEP, this.regionnanos);
+            if (debug) statusMsg("-- Loaded " + size + " chunks over " + this.regionticks + " ticks, " + String.format("%.2f", (double)this.regionnanos / 1000000) + "ms");
+	    
+            //
+            // Lighting
+            //
+            // Only chunks with all their neighbors loaded can be lit, which
+            // nextUnlit sees to
+            this.lightpos = (this.fixlighting == GenerationLighting.EXTREME || this.fixlighting == GenerationLighting.AUDIT) ? 0 : size;
+            
+            //
+            // Cleanup Chunks
+            //
+            if (this.nextUnlit() >= 0)
+            {
+                this.lighting = true;
+                this.lightstart = System.nanoTime();
+                this.lightticks = 0;
+                if (this.engine == null && this.lightthreads > 0
+                    && (this.fixlighting == GenerationLighting.EXTREME || this.fixlighting == GenerationLighting.AUDIT))
+                {
+                    this.engine = LightingEngine.create(nms, this.lightthreads, this.getMaxHeight(), this.backend.hasSky());
+                    if (this.engine == null)
+                    {
+                        if (debug) statusMsg("-- Unrecognized CraftBukkit build, lighting on the main thread instead");
+                        this.lightthreads = 0;
+                    }
+                }
+                if (this.engine != null)
+                    this.snapshotpos = 0;
+                // /allAtOnce doesn't care about lag
+                if (this.shouldRunAllAtOnce())
+                    while (this.lighting)
+                        this.runLighting();
+            }
+            else
+                this.finishRegion();
+            
+            if (this.adaptive != null)
+            {
+                // Spiral and region file orders can't change their region size
+                // once started, so all adaptive can do there is pick the period
+                RegionPlanner first = this.planners.peek();
+                int fixedsize = (first != null && !first.isResizable()) ? first.getRegionSize() : 0;
+                this.adaptive.update(this.regionnanos, size, tickMonitor.getTPS(), fixedsize);
+                if (this.adaptive.getRegionSize() != this.regionsize)
+                {
+                    if (debug) statusMsg("-- Adaptive: " + String.format("%.2f", this.adaptive.getChunkCost()) + "ms/chunk at " + String.format("%.1f", tickMonitor.getTPS()) + " TPS, region size " + this.regionsize + " -> " + this.adaptive.getRegionSize() + ", every " + this.adaptive.getPeriod() + " ticks");
+                    this.regionsize = this.adaptive.getRegionSize();
+                    // Takes effect at the start of the next row
+                    for (RegionPlanner p:this.planners)
+                        p.setRegionSize(this.regionsize);
+                }
+            }
+            
+            this.exportMetrics(false);
+            if (debug) this.printDebug();
+        }
+        
+        // Count a chunk we just loaded, and time it if start isn't -1
+        private void countLoad(long c, long start)
+        {
+            boolean created = ChunkList.is(c, ChunkList.CREATED);
+            GenerationMetrics.Counter counter = !created ? GenerationMetrics.Counter.EXISTING
+                                                : this.forceregeneration ? GenerationMetrics.Counter.REGENERATED
+                                                : GenerationMetrics.Counter.CREATED;
+            this.metrics.count(counter);
+            if (created)
+                this.changed.set(ChunkList.getX(c), ChunkList.getZ(c));
+            if (start != -1)
+                this.metrics.time(created ? GenerationMetrics.Phase.GENERATE : GenerationMetrics.Phase.LOAD, start);
+        }
+        
+        // Load chunk i of the region, and return its entry with the flags
+        // updated to match
+        private long loadChunk(int i, boolean regenerate)
+        {
+            long c = this.region.get(i);
+            int x = ChunkList.getX(c), z = ChunkList.getZ(c);
+            // Still loaded from the last region, nothing to do
+            if (ChunkList.is(c, ChunkList.LOADED) && !regenerate && this.backend.isChunkLoaded(x, z))
+                return c;
+            int flags = ChunkList.LOADED;
+            if (this.backend.isChunkLoaded(x, z))
+                flags |= ChunkList.WASLOADED;
+            if (this.backend.loadChunk(x, z))
+                flags |= ChunkList.CREATED;
+            if (regenerate && (flags & ChunkList.CREATED) == 0)
+            {
+                this.backend.regenerateChunk(x, z);
+                flags |= ChunkList.CREATED;
+            }
+            c = (c & ~(long)(ChunkList.LOADED | ChunkList.WASLOADED | ChunkList.CREATED)) | flags;
+            this.region.set(i, c);
+            return c;
+        }
+        
+        // Never from under a player, who may have changed it since we
+        // decided it didn't need saving
+        private void unloadChunk(long c, boolean save)
+        {
+            this.backend.unloadChunk(ChunkList.getX(c), ChunkList.getZ(c), save, true);
+        }
+        
+        // Try to call the craftbukkit lighting update.
+        // This will throw exceptions if: Server isn't craftbukkit, craftbukkit isn't the expected version, craftbukkit has an error...
+        // *catch exceptions* if you don't want to assume we're running on compatible craftbukkit.
+        // Returns true if it was relit.
+        private boolean fixLighting(long c, boolean force) throws Exception
+        {
+            int x = ChunkList.getX(c), z = ChunkList.getZ(c);
+            // Lighting is deferred, so the server may have unloaded it since
+            if (!ChunkList.is(c, ChunkList.LOADED) || !this.backend.isChunkLoaded(x, z)) return false;
+            
+	    // We skip the edge chunks - with overlap=2, they will be a non-edge chunk in at least one region,
+	    // where we can also guarantee their peers are loaded for proper loading
+            if (!force || ChunkList.is(c, ChunkList.EDGE)) return false;
+            this.backend.relightChunk(x, z);
+            return true;
+        }
+        
+        // For LightingEngine, null if the chunk isn't loaded anymore
+        private ChunkSnapshot getSnapshot(long c)
+        {
+            if (!ChunkList.is(c, ChunkList.LOADED)) return null;
+            return this.backend.getSnapshot(ChunkList.getX(c), ChunkList.getZ(c));
+        }
+        
+        // Returns number of chunks queued
+        public int addCircularRegion(World world, int xCenter, int zCenter, int radius)
+        {
+            if (radius < 0) return 0;
+            return this.addShapedRegion(world, new Shape.Circle(_toChunk(xCenter), _toChunk(zCenter), _toChunk(radius)));
+        }
+        // Returns number of chunks queued
+        public int addSquareRegion(World world, int xStart, int zStart, int xEnd, int zEnd)
+        {
+            return this.addShapedRegion(world, new Shape.Rect(_toChunk(xStart), _toChunk(zStart), _toChunk(xEnd), _toChunk(zEnd)));
+        }
+        
+        // Returns number of chunks queued
+        // shape is in *chunk coordinates* (see _toChunk)
+        public int addShapedRegion(World world, Shape shape)
+        {
+            if (debug) statusMsg("-- Preparing to generate region, in chunk coordinates: xStart: " + shape.getXStart() + ", zStart: " + shape.getZStart() + " xEnd: " + shape.getXEnd() + ", zEnd: " + shape.getZEnd() + ", " + shape.getArea() + " chunks");
+            if (shape.getXStart() > shape.getXEnd() || shape.getZStart() > shape.getZEnd() || shape.getArea() < 1)
+                return 0;
+            
+            this.planners.add(RegionPlanner.create(this.traversal, shape, this.regionsize));
+            return shape.getArea();
+        }
+        
+        private int _toChunk(int worldCoordinate)
+        {
+            // -1 through -16 are chunk -1,
+            // 0 through 15 are chunk 0,
+            // 16 through 32 are chunk 1...
+            if (worldCoordinate < 0)
+                return (worldCoordinate + 1)/16 - 1;
+            else
+                return worldCoordinate/16;
+        }
+        
+        // Put the chunks of xStart, zStart - xEnd, zEnd that are inside shape
+        // (all of them if it's null) in region, by row. False if there aren't
+        // any to load.
+        //
+        // existing, if given, lets us skip chunks already on disk. Only
+        // chunks whose neighbors all exist are skipped, so any new chunk
+        // still has everything around it loaded for its populators. Chunks
+        // in retained are already loaded from the last region, and keep
+        // their flags here.
+        private boolean queueRegion(int xStart, int zStart, int xEnd, int zEnd, Shape shape, RegionFileScanner existing)
+        {
+            this.region.clear();
+            this.fullrow[0] = xStart;
+            this.fullrow[1] = xEnd;
+            for (int z = zStart; z <= zEnd; z++)
+            {
+                // Only the parts of the row inside the shape
+                int[] spans = shape != null ? shape.getSpans(z) : this.fullrow;
+                for (int i = 0; i < spans.length; i += 2)
+                {
+                    for (int x = Math.max(spans[i], xStart); x <= Math.min(spans[i + 1], xEnd); x++)
+                    {
+                        if (existing != null && isSurroundedByExisting(existing, x, z))
+                        {
+                            this.metrics.count(GenerationMetrics.Counter.SKIPPED);
+                            continue;
+                        }
+                        int flags = (x == xStart || z == zStart || x == xEnd || z == zEnd) ? ChunkList.EDGE : 0;
+                        int kept = this.retained.size() > 0 ? this.retained.indexOf(x, z) : -1;
+                        if (kept >= 0)
+                        {
+                            // It's this region's to unload now, not releaseRetained's
+                            long c = this.retained.get(kept);
+                            this.retained.set(kept, c & ~(long)ChunkList.LOADED);
+                            flags |= (int)c & (ChunkList.LOADED | ChunkList.WASLOADED | ChunkList.CREATED);
+                        }
+                        this.region.add(ChunkList.pack(x, z, flags));
+                    }
+                }
+            }
+            return this.region.size() > 0;
+        }
+        
+        private boolean isSurroundedByExisting(RegionFileScanner existing, int x, int z)
+        {
+            for (int dz = -1; dz <= 1; dz++)
+                for (int dx = -1; dx <= 1; dx++)
+                    if (!existing.isGenerated(x + dx, z + dz))
+                        return false;
+            return true;
+        }
+    }
+    // Closed loop controller for GenerationSpeed.ADAPTIVE. Keeps a running
+    // estimate of what a chunk costs us, and picks a region size and step
+    // interval that averages out to the requested per-tick budget. If the
+    // server drops below the TPS floor anyway (other plugins, players, the
+    // async saver...), the budget is scaled down until it recovers.
+    private class AdaptiveSpeed
+    {
+        // How many ticks worth of budget a single step may use. Larger
+        // steps waste less on overlap, smaller steps mean smaller spikes.
+        private final static int STEP_TICKS = 20;
+        private final static int MIN_REGIONSIZE = 6;
+        private final static int MAX_REGIONSIZE = 32;
+        private final static int MIN_PERIOD = 2;
+        private final static int MAX_PERIOD = 600;
+        
+        private double budget = 10;
+        private double mintps = 0;
+        private double pressure = 1;
+        private double chunkcost = -1;
+        private int regionsize = 12;
+        private int period = 60;
+        
+        public void setTargets(double budgetms, double mintps)
+        {
+            this.mintps = mintps;
+            if (budgetms > 0)
+                this.budget = budgetms;
+            else
+                // Only a TPS floor given, start out greedy and let the floor
+                // pull us back
+                this.budget = mintps > 0 ? 40 : 10;
+        }
+        public int getRegionSize() { return this.regionsize; }
+        public int getPeriod() { return this.period; }
+        public double getChunkCost() { return this.chunkcost; }
+        
+        // fixedsize, if not 0, is the region size we're stuck with
+        public void update(long stepnanos, int chunks, double tps, int fixedsize)
+        {
+            if (chunks < 1) return;
+            double cost = (double)stepnanos / 1000000 / chunks;
+            // Steps vary a lot depending on how much of the region already
+            // existed, so smooth this out
+            this.chunkcost = this.chunkcost < 0 ? cost : (0.7 * this.chunkcost + 0.3 * cost);
+            
+            if (this.mintps > 0)
+            {
+                if (tps < this.mintps)
+                    this.pressure = Math.max(0.05, this.pressure * 0.75);
+                else if (tps > this.mintps + 0.5)
+                    this.pressure = Math.min(1, this.pressure * 1.1);
+            }
+            
+            double budget = this.budget * this.pressure;
+            int size = (int)Math.sqrt(budget * STEP_TICKS / this.chunkcost);
+            this.regionsize = fixedsize > 0 ? fixedsize : Math.max(MIN_REGIONSIZE, Math.min(MAX_REGIONSIZE, size));
+            double stepcost = this.chunkcost * this.regionsize * this.regionsize;
+            this.period = Math.max(MIN_PERIOD, Math.min(MAX_PERIOD, (int)Math.ceil(stepcost / budget)));
+        }
+    }
+    
+    // Measures how quickly the server is actually ticking, which includes
+    // any lag we're causing.
+    private class TickMonitor implements Runnable
+    {
+        private long lasttick = 0;
+        private double avginterval = 50;
+        
+        public double getTPS() { return Math.min(20, 1000 / this.avginterval); }
+        public void reset() { this.lasttick = 0; this.avginterval = 50; }
+        
+        public void run()
+        {
+            long now = System.nanoTime();
+            if (this.lasttick != 0)
+                this.avginterval = 0.95 * this.avginterval + 0.05 * ((double)(now - this.lasttick) / 1000000);
+            this.lasttick = now;
+        }
+    }
+    
+    // The live server
+    private class BukkitBackend implements WorldBackend
+    {
+        private World world;
+        private Object handle = null;
+        private Object ticklist = null;
+        private Object chunkprovider = null, chunkloader = null;
+        
+        BukkitBackend(World world)
+        {
+            this.world = world;
+            if (nms == null || !nms.hasHandles()) return;
+            try { this.handle = nms.getHandle(world); }
+            catch (Exception e) { return; } // Not a CraftWorld
+            this.ticklist = nms.getTickList(this.handle);
+            if (nms.hasChunkSave())
+            {
+                try
+                {
+                    this.chunkprovider = nms.getChunkProvider(this.handle);
+                    this.chunkloader = nms.getChunkLoader(this.chunkprovider);
+                }
+                catch (Exception e) { this.chunkprovider = null; }
+            }
+        }
+        
+        public String getName() { return this.world.getName(); }
+        public int getMaxHeight() { return this.world.getMaxHeight(); }
+        public boolean hasSky() { return this.world.getEnvironment() == World.Environment.NORMAL; }
+        
+        public boolean isChunkLoaded(int x, int z) { return this.world.isChunkLoaded(x, z); }
+        public boolean loadChunk(int x, int z)
+        {
+            Chunk chunk = this.world.getChunkAt(x, z);
+            if (chunk.isLoaded())
+                return false;
+            // Try to load it without allowing generation.
+            // to determine if it already existed
+            if (chunk.load(false))
+                return false;
+            chunk.load(true);
+            return true;
+        }
+        public void regenerateChunk(int x, int z) { this.world.regenerateChunk(x, z); }
+        public void relightChunk(int x, int z) throws Exception
+        {
+            if (nms == null || !nms.hasRelight())
+                throw new UnsupportedOperationException("No lighting fix method on this server");
+            
+            // Don't do it on chunks without their adjacents loaded, since the fix method will then fail to fix them and
+            // we're actually breaking potentially good lighting.
+            nms.relight(nms.getHandle(this.world.getChunkAt(x, z)));
+        }
+        public void unloadChunk(int x, int z, boolean save, boolean safe)
+        {
+            if (this.world.isChunkLoaded(x, z))
+                this.world.unloadChunk(x, z, save, safe);
+        }
+        public int getLoadedChunkCount() { return this.world.getLoadedChunks().length; }
+        
+        public void save() throws Exception
+        {
+            if (this.handle == null)
+                throw new UnsupportedOperationException("Not a CraftBukkit world");
+            nms.save(this.handle);
+        }
+        public void saveChunk(int x, int z) throws Exception
+        {
+            if (this.chunkprovider == null)
+                throw new UnsupportedOperationException("Can't save single chunks on this server");
+            if (!this.world.isChunkLoaded(x, z)) return;
+            nms.saveChunk(this.chunkprovider, nms.getHandle(this.world.getChunkAt(x, z)));
+        }
+        public void flushChunks() throws Exception
+        {
+            if (this.chunkloader != null)
+                nms.writeChunks(this.chunkloader);
+        }
+        
+        // Region file headers we've read, for getStoredSize. Chunks are
+        // unloaded region by region, so only the last few matter.
+        private HashMap<Long, byte[]> sectors = new HashMap<Long, byte[]>();
+        private File regionfolder = null;
+        public int getStoredSize(int x, int z)
+        {
+            Long key = chunkKey(x >> 5, z >> 5);
+            byte[] counts = this.sectors.get(key);
+            if (counts == null)
+            {
+                if (this.regionfolder == null)
+                    this.regionfolder = this.getRegionFolder();
+                if (this.sectors.size() >= 16)
+                    this.sectors.clear();
+                counts = RegionFileScanner.readSectorCounts(this.regionfolder, x >> 5, z >> 5);
+                this.sectors.put(key, counts);
+            }
+            return (counts[(x & 31) + (z & 31) * 32] & 0xFF) * RegionFileScanner.SECTOR_SIZE;
+        }
+        public int getPendingTicks()
+        {
+            if (this.ticklist == null) return 0;
+            try { return nms.getTickListSize(this.ticklist); }
+            catch (Exception e) { return 0; }
+        }
+        public void catchUpTicks(int max) throws Exception
+        {
+            if (this.ticklist == null) return;
+            int size = nms.getTickListSize(this.ticklist);
+            while (size > max)
+            {
+                nms.tick(this.handle);
+                // Not every build's list drains this way, don't spin on one
+                // that doesn't
+                int after = nms.getTickListSize(this.ticklist);
+                if (after >= size) break;
+                size = after;
+            }
+        }
+        
+        // Bukkit only tells us if anyone is online at all, not in which world
+        public boolean hasPlayers() { return getServer().getOnlinePlayers().length > 0; }
+        public Map<String, double[]> getPlayerPositions()
+        {
+            HashMap<String, double[]> ret = new HashMap<String, double[]>();
+            for (Player p:this.world.getPlayers())
+            {
+                Location loc = p.getLocation();
+                ret.put(p.getName(), new double[] { loc.getX(), loc.getZ() });
+            }
+            return ret;
+        }
+        public int kickPlayers(int x, int z, String msg)
+        {
+            int kicked = 0;
+            if (this.world.isChunkLoaded(x, z))
+            {
+                for (Entity ent:this.world.getChunkAt(x, z).getEntities())
+                    if (ent instanceof Player)
+                    {
+                        ((Player)ent).kickPlayer(msg);
+                        kicked++;
+                    }
+            }
+            return kicked;
+        }
+        
+        public ChunkSnapshot getSnapshot(int x, int z)
+        {
+            if (!this.world.isChunkLoaded(x, z)) return null;
+            return this.world.getChunkAt(x, z).getChunkSnapshot();
+        }
+        public void applyLighting(LightingEngine engine, LightingEngine.Result r) throws Exception
+        {
+            engine.apply(this.world.getChunkAt(r.getX(), r.getZ()), r);
+        }
+        
+        // The nether and end keep their region files in a DIM folder, even in
+        // CraftBukkit's separate world folders
+        public File getRegionFolder()
+        {
+            File folder;
+            try { folder = this.world.getWorldFolder(); }
+            catch (Throwable e) { return null; } // Older bukkit
+            if (folder == null) return null;
+            
+            String[] dims;
+            if (this.world.getEnvironment() == World.Environment.NETHER)
+                dims = new String[] { "DIM-1", "" };
+            else if (this.world.getEnvironment() == World.Environment.THE_END)
+                dims = new String[] { "DIM1", "" };
+            else
+                dims = new String[] { "" };
+            for (String dim:dims)
+            {
+                File dir = new File(dim.length() > 0 ? new File(folder, dim) : folder, "region");
+                if (dir.isDirectory()) return dir;
+            }
+            return null;
+        }
+    }
+    
+    // *very* simple class the parse arguments with quoting
+    private class NiceArgsParseIntException extends Throwable
+    {
+        private final static long serialVersionUID = -5360208863240437042L;
+        private String argName, badValue;
+        NiceArgsParseIntException(String argName, String badValue)
+        {
+            this.argName = argName;
+            this.badValue = badValue;
+        }
+        public String getName() { return this.argName; }
+        public String getBadValue() { return this.badValue; }
+    }
+    private class NiceArgsParseException extends Throwable
+    {
+        private final static long serialVersionUID = -1873367217076514922L;
+        private String error;
+        NiceArgsParseException(String error) { this.error = error; }
+        public String getError() { return this.error; }
+    }
+    // Not private so the benchmarks can get at it
+    class NiceArgs
+    {
+        private ArrayList<String> cleanArgs;
+        private HashMap<String, String> switches;
+        private int[] parsedInts;
+        NiceArgs(String[] args) throws NiceArgsParseException
+        {
+            String allargs = "";
+            for (int x = 0; x < args.length; x++)
+                allargs += (allargs.length() > 0 ? " " : "") + args[x];
+
+            cleanArgs = new ArrayList<String>();
+            switches = new HashMap<String, String>();
+
+            // Matches any list of items delimited by spaces. An item can have quotes around it to escape spaces
+            // inside said quotes. Also honors escape sequences
+            // E.g. arg1 "arg2 stillarg2" arg3 "arg4 \"bob\" stillarg4" arg5\ stillarg5
+            Matcher m = Pattern.compile("\\s*(?:\\\"((?:[^\\\"\\\\]|\\\\.)*)\\\"|((?:[^\\s\\\\\\\"]|\\\\(?:.|$))+))(?:\\s|$)").matcher(allargs);
+            while (m.regionStart() < m.regionEnd())
+            {
+                if (m.lookingAt())
+                {
+                    String rawarg = m.group(1) == null ? m.group(2) : m.group(1);
+                    String arg = rawarg.replaceAll("\\\\(.|$)", "$1");
+                    if (m.group(2) != null && rawarg.charAt(0) == '/')
+                    {
+                        // Handle switches. (Matches in group 1 are quoted arugments. They cannot be switches.)
+                        String st[] = arg.substring(1).split(":");
+                        if (st.length > 2)
+                            throw new NiceArgsParseException("Invalid option: " + arg.substring(1));
+                        this.switches.put(st[0].toLowerCase(), st.length == 2 ? st[1] : "true");
+                    }
+                    else
+                    {
+                        cleanArgs.add(arg);
+                    }
+                    m.region(m.end(), m.regionEnd());
+                }
+                else
+                    throw new NiceArgsParseException("Error - Mismatched/errant quotes in arguments. You can escape quotes in world names with backslashes, e.g. \\\"");
+            }
+        }
+        public int length() { return this.cleanArgs.size(); }
+        public String get(int x) { return this.cleanArgs.get(x); }
+        public String getSwitch(String key) { return switches.get(key.toLowerCase()); }
+        // All switches but those in skip, as they'd be typed after the other
+        // arguments
+        public String getSwitchString(String... skip)
+        {
+            String ret = "";
+            keys:
+            for (String key:this.switches.keySet())
+            {
+                for (String k:skip)
+                    if (k.equalsIgnoreCase(key))
+                        continue keys;
+                String value = this.switches.get(key);
+                ret += " /" + key + (value.equals("true") ? "" : ":" + value);
+            }
+            return ret;
+        }
+        public int getInt(int i, String argName) throws NiceArgsParseIntException
+        {
+            try
+                { return Integer.parseInt(this.cleanArgs.get(i)); }
+            catch (NumberFormatException e)
+                { throw new NiceArgsParseIntException(argName, this.cleanArgs.get(i)); }
+        }
+    }
+
+    // Pack chunk coordinates into one key
+    private static long chunkKey(int x, int z)
+    {
+        return ((long)x << 32) | (z & 0xFFFFFFFFL);
+    }
+    
+    // Quote an argument so NiceArgs parses it back as-is
+    private static String quoteArg(String arg)
+    {
+        return "\"" + arg.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private Logger logger = Bukkit.getLogger();
+    private StatusBroadcaster status = null;
+    private MemoryGovernor memoryGovernor = null;
+    // Generations in progress, no more than one per world
+    private ArrayList<GenerationRegion> runningRegions = new ArrayList<GenerationRegion>();
+    private Runtime runtime = Runtime.getRuntime();
+    private NmsAdapter nms = null;
+    private boolean lightingRequiresForce = false;
+    // Generations waiting to run or paused, in the order they'll start
+    private ArrayList<GenerationRegion> pendingRegions = new ArrayList<GenerationRegion>();
+    private JobJournal journal = null;
+    private int nextJobId = 1;
+    private int taskId = 0;
+    private long tick = 0;
+    private TickMonitor tickMonitor = new TickMonitor();
+    private boolean quitAfter = false;
+    // From config.yml
+    private int maxRunning = 4;
+    private double tickBudget = 25;
+
+    public void onEnable()
+    {
+        getServer().getPluginManager().registerEvents(this.getStatus(), this);
+        statusMsg("v"+VERSION+" Loaded");
+        
+        getConfig().addDefault("concurrent-generations", this.maxRunning);
+        getConfig().addDefault("tick-budget-ms", this.tickBudget);
+        getConfig().options().copyDefaults(true);
+        saveConfig();
+        this.maxRunning = Math.max(1, getConfig().getInt("concurrent-generations", this.maxRunning));
+        this.tickBudget = Math.max(0, getConfig().getDouble("tick-budget-ms", this.tickBudget));
+        
+        // Everything we need from CraftBukkit, looked up once
+        this.nms = NmsAdapter.probe(getServer());
+        if (this.nms.getRelightName() != null)
+        {
+            statusMsg("Found lighting fix method '" + this.nms.getRelightName() + "'");
+            // 1.3+ doesn't initialize lighting on new chunks at all, meaning calling
+            // initLighting is required prior to get any lighting, so until we're smarter about
+            // detecting this, always require force here
+            this.lightingRequiresForce = this.nms.getRelightName().equals("q");
+        }
+        if (!this.nms.hasRelight())
+            statusMsg("WARNING: Failed to find lighting fix method, /lighting will not work for this CB build");
+        else if (this.nms.hasHandles() && this.nms.getMissing().size() > 0)
+            statusMsg("Warning: Unrecognized CraftBukkit build, couldn't find " + this.nms.getMissing());
+        
+        // Pick up any generations that were running when the server went down
+        this.journal = new JobJournal(new File(getDataFolder(), "journal.dat"));
+        try
+        {
+            final List<JobJournal.Entry> unfinished = this.journal.open();
+            for (JobJournal.Entry e:unfinished)
+                this.nextJobId = Math.max(this.nextJobId, e.getId() + 1);
+            if (unfinished.size() > 0)
+            {
+                // Wait for the server to finish starting up, so worlds other
+                // plugins load are there too
+                getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable()
+                {
+                    public void run() { resumeGenerations(unfinished); }
+                }, 1);
+            }
+        }
+        catch (IOException e)
+        {
+            statusMsg("WARNING: Unable to open job journal, generations will not be resumed after a restart: " + e.getMessage());
+            this.journal = null;
+        }
+    }
+    
+    private void resumeGenerations(List<JobJournal.Entry> unfinished)
+    {
+        for (JobJournal.Entry e:unfinished)
+        {
+            String spec = e.getSpec();
+            int split = spec.indexOf(' ');
+            GenerationRegion gen = null;
+            NiceArgs args = null;
+            if (split > 0)
+            {
+                try
+                {
+                    args = new NiceArgs(new String[] { spec.substring(split + 1) });
+                    gen = this.parseGeneration(null, spec.substring(0, split), args, e.getId());
+                }
+                catch (NiceArgsParseException ex) {}
+            }
+            if (gen == null)
+            {
+                statusMsg("Unable to resume generation #" + e.getId() + " (" + spec + "), dropping it.");
+                this.journalDone(e.getId());
+                continue;
+            }
+            if (e.getState() != null && !gen.restoreState(e.getState()))
+                statusMsg("Generation #" + e.getId() + " has unrecognized progress, restarting it from the beginning.");
+            
+            this.queueGeneration(gen);
+            if (args.getSwitch("quitafter") != null)
+                this.quitAfterGeneration(true);
+            if (gen.isFollowing())
+                statusMsg("Resumed generation #" + e.getId() + ", generating ahead of players in " + gen.getWorldName() + ".");
+            else
+                statusMsg("Resumed generation #" + e.getId() + " of " + gen.getSize() + " chunk region.");
+        }
+    }
+    
+    // The journal is a nicety, if it breaks just stop using it
+    private void journalFailed(IOException e)
+    {
+        statusMsg("WARNING: Unable to write job journal, generations will not be resumed after a restart: " + e.getMessage());
+        try { this.journal.close(); }
+        catch (IOException ex) {}
+        this.journal = null;
+    }
+    private void journalAdd(GenerationRegion gen)
+    {
+        if (this.journal == null || gen.getSpec() == null) return;
+        try { this.journal.add(gen.getId(), gen.getSpec()); }
+        catch (IOException e) { this.journalFailed(e); }
+    }
+    private void journalProgress(GenerationRegion gen, int[] state)
+    {
+        if (this.journal == null) return;
+        try { this.journal.progress(gen.getId(), state); }
+        catch (IOException e) { this.journalFailed(e); }
+    }
+    // Priority or pausing changed
+    private void journalUpdate(GenerationRegion gen)
+    {
+        if (this.journal == null || gen.getSpec() == null) return;
+        try { this.journal.update(gen.getId(), gen.getSpec()); }
+        catch (IOException e) { this.journalFailed(e); }
+    }
+    private void journalDone(int id)
+    {
+        if (this.journal == null) return;
+        try { this.journal.done(id); }
+        catch (IOException e) { this.journalFailed(e); }
+    }
+    
+    // Send a status message to all players
+    // with worldgenerationcontrol.statusmessage permissions,
+    // as well as the console. If a player/console (target) is 
+    // specified, include him regardless of his permissions.
+    // if senderOnly is true, only send the message to him.
+    private void statusMsg(String str, CommandSender target, boolean senderOnly)
+    {
+        //ChatColor.stripColor
+        String msg = ChatColor.DARK_GRAY + "[" + ChatColor.GRAY + "WorldGenCtrl" + ChatColor.DARK_GRAY + "]" + ChatColor.WHITE + " " + str;
+        
+        // Message target if provided
+        if (target instanceof Player)
+            // commandsender.sendmessage doesn't support color, even if its a player :<
+            ((Player)target).sendMessage(msg);
+        else if (target != null)
+            target.sendMessage(ChatColor.stripColor(msg));
+        
+        // Message all non-target players, and the console unless its the
+        // target
+        if (!senderOnly)
+            this.getStatus().broadcast(msg, target);
+    }
+    // Shared by every generation, since they share the heap
+    private MemoryGovernor getMemory()
+    {
+        if (this.memoryGovernor == null)
+            this.memoryGovernor = new MemoryGovernor();
+        return this.memoryGovernor;
+    }
+    private StatusBroadcaster getStatus()
+    {
+        // Before onEnable this still works, just without join/quit events
+        if (this.status == null)
+            this.status = new StatusBroadcaster(getServer(), this.logger);
+        return this.status;
+    }
+    private void statusMsg(String str)
+    {
+        this.statusMsg(str, null, false);
+    }
+    // If target is null (e.g. a generation being resumed from the journal)
+    // this goes to everyone instead
+    private void statusMsg(String str, CommandSender target)
+    {
+        this.statusMsg(str, target, target != null);
+    }
+
+    public void onDisable()
+    {
+        if (this.taskId != 0)
+        {
+            if (this.journal != null)
+                statusMsg("Plugin unloaded, pausing generation. It will resume when the plugin is next loaded.");
+            else
+                statusMsg("Plugin unloaded, aborting generation.");
+            this.endTask();
+        }
+        for (GenerationRegion r:this.runningRegions)
+        {
+            r.releaseLighting();
+            r.releaseRetained();
+            r.releaseMetrics();
+        }
+        // Paused ones are queued with no task running, and their MBeans
+        // would otherwise outlive a /reload
+        for (GenerationRegion r:this.pendingRegions)
+            r.releaseMetrics();
+        if (this.journal != null)
+        {
+            try { this.journal.close(); }
+            catch (IOException e) {}
+            this.journal = null;
+        }
+        if (this.memoryGovernor != null)
+        {
+            this.memoryGovernor.release();
+            this.memoryGovernor = null;
+        }
+    }
+
+    
+
+    public boolean onCommand(CommandSender sender, Command cmd, String commandLabel, String[] rawargs)
+    {
+        NiceArgs args;
+        try
+        {
+            args = new NiceArgs(rawargs);
+        }
+        catch (NiceArgsParseException e)
+        {
+            statusMsg(e.getError(), sender);
+            return true;
+        }
+        
+        if (!sender.isOp() && !sender.hasPermission("worldgenerationcontrol.generate"))
+        {
+            statusMsg(ChatColor.RED + "Only server ops or those with the worldgenerationcontrol.generate permission may do that :<", sender);
+            return true;
+        }
+        String who = sender instanceof Player ? ("player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "the console";
+        
+        boolean bCircular = commandLabel.compareToIgnoreCase("generatecircularregion") == 0 || commandLabel.compareToIgnoreCase("gencircle") == 0;
+        boolean bShape = commandLabel.compareToIgnoreCase("generateshape") == 0 || commandLabel.compareToIgnoreCase("genshape") == 0;
+        boolean bBatch = commandLabel.compareToIgnoreCase("generatebatch") == 0 || commandLabel.compareToIgnoreCase("genbatch") == 0;
+        if (bCircular || bShape || bBatch || commandLabel.compareToIgnoreCase("generateregion") == 0 || commandLabel.compareToIgnoreCase("genregion") == 0)
+        {
+            if     ((bCircular && (args.length() != 1 && args.length() != 4))
+                || ((bShape || bBatch) && args.length() < 2)
+                || (!bCircular && !bShape && !bBatch && args.length() != 5))
+            {
+                return false;
+            }
+            
+            GenerationRegion gen = this.parseGeneration(sender, bCircular ? "gencircle" : bShape ? "genshape" : bBatch ? "genbatch" : "genregion", args, this.nextJobId++);
+            if (gen == null)
+                return true;
+            this.journalAdd(gen);
+            this.queueGeneration(gen);
+            if (args.getSwitch("quitafter") != null)
+                this.quitAfterGeneration(true);
+            int numChunks = gen.getSize();
+            statusMsg((sender instanceof Player ? ("Player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "The console") + " queued generation #" + gen.getId() + " of " + numChunks + " chunk region (" + (numChunks * 16) + " blocks).");
+        }
+        else if (commandLabel.compareToIgnoreCase("generatefollow") == 0 || commandLabel.compareToIgnoreCase("genfollow") == 0)
+        {
+            if (args.length() > 1)
+                return false;
+            GenerationRegion gen = this.parseGeneration(sender, "genfollow", args, this.nextJobId++);
+            if (gen == null)
+                return true;
+            this.journalAdd(gen);
+            this.queueGeneration(gen);
+            statusMsg((sender instanceof Player ? ("Player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "The console") + " queued generation #" + gen.getId() + ", generating ahead of players in " + gen.getWorldName() + " until canceled.");
+        }
+        else if (commandLabel.compareToIgnoreCase("restoregeneration") == 0 || commandLabel.compareToIgnoreCase("genrestore") == 0)
+        {
+            if (args.length() > 1) return false;
+            if (args.length() == 0)
+                this.listSnapshots(sender);
+            else
+                this.restoreSnapshot(sender, args.get(0), args.getSwitch("discard") != null, who);
+        }
+        else if (commandLabel.compareToIgnoreCase("listgenerations") == 0 || commandLabel.compareToIgnoreCase("genlist") == 0)
+        {
+            List<GenerationRegion> gens = this.getGenerations();
+            if (gens.size() == 0)
+            {
+                statusMsg("There is no chunk generation in progress", sender);
+                return true;
+            }
+            for (GenerationRegion r:gens)
+            {
+                String state;
+                if (this.runningRegions.contains(r))
+                    state = r.isStopping() ? ChatColor.YELLOW + (r.isPaused() ? "pausing" : "making way") : ChatColor.GREEN + "running";
+                else if (r.isPaused())
+                    state = ChatColor.YELLOW + "paused";
+                else
+                    state = ChatColor.GRAY + "queued";
+                String progress = r.isFollowing() ? "following " + r.getFollowedPlayers() + " players"
+                                  : String.format("%.2f", 100 * r.getProgress()) + "% of " + r.getSize() + " chunks";
+                statusMsg("#" + r.getId() + " " + state + ChatColor.WHITE + " " + r.getWorldName() + ", " + progress
+                          + (r.getPriority() != 0 ? ", priority " + r.getPriority() : ""), sender);
+            }
+        }
+        else if (commandLabel.compareToIgnoreCase("cancelgeneration") == 0 || commandLabel.compareToIgnoreCase("cancelgen") == 0)
+        {
+            if (args.length() > 0)
+            {
+                GenerationRegion gen = this.findGeneration(sender, args, 0);
+                if (gen == null) return true;
+                statusMsg("Generation #" + gen.getId() + " canceled by " + who);
+                this.cancelGeneration(gen);
+            }
+            else if (this.taskId == 0 && this.pendingRegions.size() == 0)
+            {
+                statusMsg("There is no chunk generation in progress", sender);
+                return true;
+            }
+            else
+            {
+                statusMsg("Generation canceled by " + who);
+                this.cancelGeneration();
+            }
+        }
+        else if (commandLabel.compareToIgnoreCase("pausegeneration") == 0 || commandLabel.compareToIgnoreCase("genpause") == 0)
+        {
+            if (args.length() != 1) return false;
+            GenerationRegion gen = this.findGeneration(sender, args, 0);
+            if (gen == null) return true;
+            if (gen.isPaused())
+            {
+                statusMsg("Generation #" + gen.getId() + " is already paused", sender);
+                return true;
+            }
+            statusMsg("Generation #" + gen.getId() + " paused by " + who);
+            this.pauseGeneration(gen);
+        }
+        else if (commandLabel.compareToIgnoreCase("resumegeneration") == 0 || commandLabel.compareToIgnoreCase("genresume") == 0)
+        {
+            if (args.length() != 1) return false;
+            GenerationRegion gen = this.findGeneration(sender, args, 0);
+            if (gen == null) return true;
+            if (!gen.isPaused())
+            {
+                statusMsg("Generation #" + gen.getId() + " isn't paused", sender);
+                return true;
+            }
+            statusMsg("Generation #" + gen.getId() + " resumed by " + who);
+            this.resumeGeneration(gen);
+        }
+        else if (commandLabel.compareToIgnoreCase("prioritizegeneration") == 0 || commandLabel.compareToIgnoreCase("genpriority") == 0)
+        {
+            if (args.length() != 2) return false;
+            GenerationRegion gen = this.findGeneration(sender, args, 0);
+            if (gen == null) return true;
+            int priority;
+            try { priority = args.getInt(1, "priority"); }
+            catch (NiceArgsParseIntException e)
+            {
+                statusMsg("Error: " + e.getName() + " argument must be a number, not \"" + e.getBadValue() + "\"", sender);
+                return true;
+            }
+            statusMsg("Generation #" + gen.getId() + " set to priority " + priority + " by " + who);
+            this.setGenerationPriority(gen, priority);
+        }
+        return true;
+    }
+    
+    // Where /destroyAndRegenerateArea backs up region files, see RegionSnapshot
+    private File getSnapshotFolder() { return new File(getDataFolder(), "snapshots"); }
+    
+    private void listSnapshots(CommandSender sender)
+    {
+        File[] folders = this.getSnapshotFolder().listFiles();
+        int shown = 0;
+        if (folders != null)
+        {
+            for (File f:folders)
+            {
+                if (!f.getName().startsWith("generation-")) continue;
+                String id = f.getName().substring("generation-".length());
+                RegionSnapshot snap;
+                try { snap = RegionSnapshot.open(f); }
+                catch (IOException e)
+                {
+                    statusMsg("#" + id + " can't be read: " + e.getMessage(), sender);
+                    continue;
+                }
+                if (snap == null) continue;
+                statusMsg("#" + id + " " + snap.getWorld() + ", " + snap.getFileCount() + " region files ("
+                          + String.format("%.1f", snap.getBytes() / 1048576.0) + "MiB)", sender);
+                shown++;
+            }
+        }
+        if (shown == 0)
+            statusMsg("There are no region file snapshots to restore", sender);
+    }
+    
+    // Put back the region files generation #id regenerated, or just throw
+    // its snapshot away with discard. Whole region files go back, so every
+    // chunk in them is rolled back, not just the area's. Those chunks are
+    // dropped from memory without saving and the server's open region files
+    // closed first, so the old files are read afresh when next visited.
+    private void restoreSnapshot(CommandSender sender, String id, boolean discard, String who)
+    {
+        if (id.startsWith("#")) id = id.substring(1);
+        if (!id.matches("\\d{1,9}"))
+        {
+            statusMsg("There is no snapshot for generation #" + id + ", see /genrestore", sender);
+            return;
+        }
+        File folder = new File(this.getSnapshotFolder(), "generation-" + id);
+        RegionSnapshot snap;
+        try { snap = RegionSnapshot.open(folder); }
+        catch (IOException e)
+        {
+            statusMsg("Error: Unable to read the snapshot for generation #" + id + ": " + e.getMessage(), sender);
+            return;
+        }
+        if (snap == null)
+        {
+            statusMsg("There is no snapshot for generation #" + id + ", see /genrestore", sender);
+            return;
+        }
+        GenerationRegion owner = this.getGeneration(Integer.parseInt(id));
+        if (owner != null)
+        {
+            statusMsg("Generation #" + id + " is still queued or running, cancel it first", sender);
+            return;
+        }
+        if (discard)
+        {
+            try { RegionSnapshot.delete(folder); }
+            catch (IOException e)
+            {
+                statusMsg("Error: " + e.getMessage(), sender);
+                return;
+            }
+            statusMsg("Snapshot for generation #" + id + " discarded by " + who);
+            return;
+        }
+        
+        World world = getServer().getWorld(snap.getWorld());
+        if (world == null)
+        {
+            statusMsg("World \"" + ChatColor.GOLD + snap.getWorld() + ChatColor.WHITE + "\" isn't loaded.", sender);
+            return;
+        }
+        for (GenerationRegion gen:this.getGenerations())
+            if (gen.getWorldName().equals(world.getName()))
+            {
+                statusMsg("Generation #" + gen.getId() + " is queued for " + world.getName() + ", cancel it or let it finish first", sender);
+                return;
             }
+        if (this.nms == null || !this.nms.hasCloseRegions())
+        {
+            statusMsg("This CraftBukkit build doesn't let the plugin close its region files. To restore, stop the server and copy the files in "
+                      + folder + " into " + snap.getRegionFolder(), sender);
+            return;
+        }
+        // Anyone who can see into the area would have it loaded right back
+        int view = getServer().getViewDistance();
+        for (Player p:world.getPlayers())
+        {
+            int cx = p.getLocation().getBlockX() >> 4, cz = p.getLocation().getBlockZ() >> 4;
+            for (int rx = (cx - view) >> 5; rx <= (cx + view) >> 5; rx++)
+                for (int rz = (cz - view) >> 5; rz <= (cz + view) >> 5; rz++)
+                    if (snap.covers(rx, rz))
+                    {
+                        statusMsg("Player " + ChatColor.GOLD + p.getName() + ChatColor.WHITE + " is in or near the area, it can't be restored until they leave", sender);
+                        return;
+                    }
         }
         
-        public void load() { this.load(false); }
-        public void load(boolean regenerateChunk)
+        BukkitBackend backend = new BukkitBackend(world);
+        int dropped = 0;
+        for (Chunk c:world.getLoadedChunks())
+            if (snap.covers(c.getX() >> 5, c.getZ() >> 5) && world.unloadChunk(c.getX(), c.getZ(), false, false))
+                dropped++;
+        // The server can refuse, spawn chunks kept in memory for one. Those
+        // would be saved over the restored files later.
+        for (Chunk c:world.getLoadedChunks())
+            if (snap.covers(c.getX() >> 5, c.getZ() >> 5))
+            {
+                statusMsg("Chunk " + c.getX() + ", " + c.getZ() + " in the area won't unload (is it by spawn?), so it can't be restored. Nothing was restored.", sender);
+                return;
+            }
+        try
+        {
+            // Anything still queued for writing would land on top of the
+            // restored files otherwise
+            backend.flushChunks();
+            this.nms.closeRegionFiles();
+            snap.restore(backend.getRegionFolder());
+        }
+        catch (Exception e)
+        {
+            statusMsg("Error: Restoring the snapshot for generation #" + id + " failed, it is still there to try again: " + e, sender);
+            return;
+        }
+        statusMsg("Region files of " + world.getName() + " from before generation #" + id + " restored by " + who + " (" + snap.getFileCount()
+                  + " files, " + dropped + " chunks dropped from memory). /genrestore " + id + " /discard deletes the snapshot.");
+    }
+    
+    // The generation whose id is argument i, or null after telling the sender
+    // there isn't one
+    private GenerationRegion findGeneration(CommandSender sender, NiceArgs args, int i)
+    {
+        String id = args.get(i);
+        if (id.startsWith("#")) id = id.substring(1);
+        GenerationRegion gen = null;
+        try { gen = this.getGeneration(Integer.parseInt(id)); }
+        catch (NumberFormatException e) {}
+        if (gen == null)
+            statusMsg("There is no generation #" + id + ", see /genlist", sender);
+        return gen;
+    }
+    
+    // Parse a generation command into a GenerationRegion, ready to be queued.
+    // type is gencircle, genregion, genshape, genbatch or genfollow. Returns null if the arguments
+    // were bad, after telling the sender why.
+    private GenerationRegion parseGeneration(CommandSender sender, String type, NiceArgs args, int id)
+    {
+        boolean bCircular = type.equals("gencircle");
+        boolean bShape = type.equals("genshape");
+        boolean bBatch = type.equals("genbatch");
+        boolean bFollow = type.equals("genfollow");
+        World world = null;
+        int xCenter = 0, zCenter = 0, xStart = 0, zStart = 0, xEnd = 0, zEnd = 0, radius = 0;
+        Shape shape = null;
+        ArrayList<Shape> add = new ArrayList<Shape>();
+        ArrayList<Shape> remove = new ArrayList<Shape>();
+        try
         {
-            this.chunk = this.world.getChunkAt(this.x, this.z);
-            if (!this.chunk.isLoaded())
+            if (bFollow)
+            {
+                if (args.length() > 0)
+                    world = getServer().getWorld(args.get(0));
+                else if (sender instanceof Player)
+                    world = ((Player)sender).getWorld();
+                else
+                {
+                    statusMsg("You're not a player, so you need to specify a world name.", sender);
+                    return null;
+                }
+                if (world == null)
+                {
+                    statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
+                    return null;
+                }
+            }
+            else if (bShape || bBatch)
+            {
+                world = getServer().getWorld(args.get(0));
+                if (world == null)
+                {
+                    statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
+                    return null;
+                }
+                if (bBatch)
+                {
+                    File file = new File(this.getJobFolder(), args.get(1));
+                    if (!args.get(1).matches("[\\w.-]+") || args.get(1).startsWith(".") || !file.isFile())
+                    {
+                        statusMsg("Error: There is no job file \"" + args.get(1) + "\" in " + this.getJobFolder(), sender);
+                        return null;
+                    }
+                    try { this.readJobFile(file, add, remove); }
+                    catch (IOException e)
+                    {
+                        statusMsg("Error: Unable to read " + file + ": " + e.getMessage(), sender);
+                        return null;
+                    }
+                }
+                for (int i = bBatch ? 2 : 1; i < args.length(); i++)
+                {
+                    String arg = args.get(i);
+                    if (arg.startsWith("-"))
+                        remove.add(this.parseShape(arg.substring(1)));
+                    else
+                        add.add(this.parseShape(arg));
+                }
+                if (add.size() == 0)
+                {
+                    statusMsg("Error: Nothing to generate, only shapes to leave out.", sender);
+                    return null;
+                }
+                shape = add.size() == 1 ? add.get(0) : new Shape.Union(add.toArray(new Shape[add.size()]));
+                if (remove.size() > 0)
+                    shape = new Shape.Difference(shape, remove.size() == 1 ? remove.get(0) : new Shape.Union(remove.toArray(new Shape[remove.size()])));
+                // The whole batch is planned as one area, worked out once
+                if (bBatch)
+                    shape = new Shape.Raster(shape);
+            }
+            else if (bCircular)
             {
-                // Try to load it without allowing generation.
-                // to determine if it already existed
-                if (this.chunk.load(false))
-                    this.wascreated = false;
+                radius = args.getInt(0, "radius");
+
+                if (radius < 1)
+                {
+                    statusMsg("Radius must be > 1", sender);
+                    return null;
+                }
+                
+                if (sender instanceof Player && args.length() < 4)
+                {
+                    // Use player's location to center circle
+                    Block c = ((Player)sender).getLocation().getBlock();
+                    world = c.getWorld();
+                    xCenter = c.getX();
+                    zCenter = c.getZ();
+                }
                 else
                 {
-                    this.chunk.load(true);
-                    this.wascreated = true;
+                    if (args.length() < 4)
+                    {
+                        statusMsg("You're not a player, so you need to specify a world name and location.", sender);
+                        return null;
+                    }
+                    world = getServer().getWorld(args.get(1));
+                    if (world == null)
+                    {
+                        statusMsg("World \"" + ChatColor.GOLD + args.get(1) + ChatColor.WHITE + "\" does not exist.", sender);
+                        return null;
+                    }
+                    xCenter = args.getInt(2, "xCenter");
+                    zCenter = args.getInt(3, "zCenter");
+                }
+            }
+            else
+            {
+                world = getServer().getWorld(args.get(0));
+                if (world == null)
+                {
+                    statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
+                    return null;
+                }
+                xStart = args.getInt(1, "xStart");
+                zStart = args.getInt(2, "zStart");
+                xEnd   = args.getInt(3, "xEnd");
+                zEnd   = args.getInt(4, "zEnd");
+            }
+        }
+        catch (NiceArgsParseIntException e)
+        {
+            statusMsg("Error: " + e.getName() + " argument must be a number, not \"" + e.getBadValue() + "\"", sender);
+            return null;
+        }
+        catch (NiceArgsParseException e)
+        {
+            statusMsg("Error: " + e.getError(), sender);
+            return null;
+        }
+        
+        if (bCircular && radius < 1)
+        {
+            statusMsg("Circle radius must be > 0.", sender);
+            return null;
+        }
+        else if (!bCircular && !bShape && !bBatch && !bFollow && (xEnd - xStart < 1 || zEnd - zStart < 1))
+        {
+            statusMsg("xEnd and zEnd must be greater than xStart and zStart respectively.", sender);
+            return null;
+        }
+
+        int numChunks;
+        GenerationSpeed speed = GenerationSpeed.NORMAL;
+        if (args.getSwitch("allatonce") != null)
+            speed = GenerationSpeed.ALLATONCE;
+        else if (args.getSwitch("veryfast") != null)
+            speed = GenerationSpeed.VERYFAST;
+        else if (args.getSwitch("fast") != null)
+            speed = GenerationSpeed.FAST;
+        else if (args.getSwitch("slow") != null)
+            speed = GenerationSpeed.SLOW;
+        else if (args.getSwitch("veryslow") != null)
+            speed = GenerationSpeed.VERYSLOW;
+        else if (args.getSwitch("adaptive") != null || args.getSwitch("budget") != null || args.getSwitch("minTPS") != null)
+            speed = GenerationSpeed.ADAPTIVE;
+        
+        GenerationLighting lighting;
+        String lightswitch = args.getSwitch("lighting");
+        if (lightswitch == null)
+            lightswitch = "normal";
+        else
+            lightswitch = lightswitch.toLowerCase();
+        
+        if (!lightswitch.equals("none"))
+        {
+            if (lightswitch.equals("extreme") || lightswitch.equals("force"))
+                lighting = GenerationLighting.EXTREME;
+            else if (lightswitch.equals("audit"))
+                lighting = GenerationLighting.AUDIT;
+            else if (lightswitch.equals("true") || lightswitch.equals("normal"))
+		{
+		    lighting = this.lightingRequiresForce ? GenerationLighting.EXTREME : GenerationLighting.NORMAL;
+		}
+            else
+            {
+                statusMsg("Invalid lighting mode \""+lightswitch+"\"");
+                return null;
+            }
+        }
+        else
+            lighting = GenerationLighting.NONE;
+        
+        int priority = 0;
+        if (args.getSwitch("priority") != null)
+        {
+            try { priority = Integer.parseInt(args.getSwitch("priority")); }
+            catch (NumberFormatException e)
+            {
+                statusMsg("Error: /priority must be a whole number, e.g. /priority:10 to go ahead of everything at the default of 0", sender);
+                return null;
+            }
+        }
+        
+        // Remember the command in a form that doesn't depend on who ran it,
+        // so the job journal can rebuild this generation after a restart
+        StringBuilder spec = new StringBuilder();
+        if (bFollow)
+            spec.append("genfollow ").append(quoteArg(world.getName()));
+        else if (bShape || bBatch)
+        {
+            spec.append(bBatch ? "genbatch " : "genshape ").append(quoteArg(world.getName()));
+            for (int i = 1; i < args.length(); i++)
+                spec.append(" ").append(quoteArg(args.get(i)));
+        }
+        else if (bCircular)
+            spec.append("gencircle ").append(radius).append(" ").append(quoteArg(world.getName())).append(" ").append(xCenter).append(" ").append(zCenter);
+        else
+            spec.append("genregion ").append(quoteArg(world.getName())).append(" ").append(xStart).append(" ").append(zStart).append(" ").append(xEnd).append(" ").append(zEnd);
+        spec.append(args.getSwitchString("priority", "paused"));
+        
+        GenerationRegion gen = new GenerationRegion(world, id, spec.toString());
+        gen.setPriority(priority);
+        gen.setPaused(args.getSwitch("paused") != null);
+        gen.setSpeed(speed);
+        gen.setLighting(lighting);
+        if (args.getSwitch("debug") != null || args.getSwitch("verbose") != null)
+            gen.setDebug(true);
+        if (args.getSwitch("destroyAndRegenerateArea") != null)
+        {
+            gen.setForceRegen(true);
+            if (args.getSwitch("noSnapshot") == null)
+                gen.setSnapshotFolder(new File(getSnapshotFolder(), "generation-" + id));
+        }
+        if (args.getSwitch("onlyWhenEmpty") != null)
+            gen.setOnlyWhenEmpty(true);
+        if (args.getSwitch("forceSave") != null || args.getSwitch("forceKeepUp") != null)
+            gen.setForceKeepup(true);
+        if (args.getSwitch("order") != null)
+        {
+            RegionPlanner.Traversal order = null;
+            for (RegionPlanner.Traversal t:RegionPlanner.Traversal.values())
+                if (t.name().equalsIgnoreCase(args.getSwitch("order")))
+                    order = t;
+            if (order == null)
+            {
+                statusMsg("Error: Invalid order \"" + args.getSwitch("order") + "\", must be one of rows, serpentine, spiral or regionfile", sender);
+                return null;
+            }
+            gen.setTraversal(order);
+        }
+        if (args.getSwitch("sliceSize") != null)
+        {
+            int slicesize;
+            try { slicesize = Integer.parseInt(args.getSwitch("sliceSize")); }
+            catch (NumberFormatException e) { slicesize = -1; }
+            if (slicesize < 0)
+            {
+                statusMsg("Error: /sliceSize must be a number of chunks per tick, e.g. /sliceSize:16, or 0 to load each section in one go", sender);
+                return null;
+            }
+            gen.setSliceSize(slicesize);
+        }
+        if (args.getSwitch("lightingBudget") != null)
+        {
+            double lightbudget;
+            try { lightbudget = Double.parseDouble(args.getSwitch("lightingBudget")); }
+            catch (NumberFormatException e) { lightbudget = -1; }
+            if (lightbudget <= 0)
+            {
+                statusMsg("Error: /lightingBudget must be a positive number of milliseconds, e.g. /lightingBudget:10", sender);
+                return null;
+            }
+            gen.setLightingBudget(lightbudget);
+        }
+        if (args.getSwitch("lightingThreads") != null)
+        {
+            int threads;
+            try { threads = Integer.parseInt(args.getSwitch("lightingThreads")); }
+            catch (NumberFormatException e) { threads = -1; }
+            if (threads < 0)
+            {
+                statusMsg("Error: /lightingThreads must be a number of threads, e.g. /lightingThreads:4, or 0 to light on the main thread", sender);
+                return null;
+            }
+            gen.setLightingThreads(threads);
+        }
+        if (args.getSwitch("metrics") != null)
+        {
+            String format = args.getSwitch("metrics").toLowerCase();
+            if (!format.equals("csv") && !format.equals("json"))
+            {
+                statusMsg("Error: /metrics must be csv or json, e.g. /metrics:csv", sender);
+                return null;
+            }
+            int interval = 60;
+            if (args.getSwitch("metricsInterval") != null)
+            {
+                try { interval = Integer.parseInt(args.getSwitch("metricsInterval")); }
+                catch (NumberFormatException e) { interval = -1; }
+                if (interval < 1)
+                {
+                    statusMsg("Error: /metricsInterval must be a number of seconds, e.g. /metricsInterval:60", sender);
+                    return null;
                 }
             }
-            else
-                this.wascreated = false;
-            
-            if (regenerateChunk && !this.wascreated)
+            gen.setMetricsExport(new File(new File(getDataFolder(), "metrics"), "generation-" + id + "." + format), format.equals("json"), interval);
+        }
+        if (args.getSwitch("weight") != null)
+        {
+            double weight;
+            try { weight = Double.parseDouble(args.getSwitch("weight")); }
+            catch (NumberFormatException e) { weight = -1; }
+            if (weight <= 0)
+            {
+                statusMsg("Error: /weight must be a positive number, e.g. /weight:2 for twice the share of a normal generation", sender);
+                return null;
+            }
+            gen.setWeight(weight);
+        }
+        if (args.getSwitch("statusInterval") != null)
+        {
+            double interval;
+            try { interval = Double.parseDouble(args.getSwitch("statusInterval")); }
+            catch (NumberFormatException e) { interval = -1; }
+            if (interval < 0)
+            {
+                statusMsg("Error: /statusInterval must be a number of seconds, e.g. /statusInterval:5, or 0 for every section", sender);
+                return null;
+            }
+            gen.setStatusInterval(interval);
+        }
+        if (args.getSwitch("retain") != null)
+        {
+            int retain;
+            try { retain = Integer.parseInt(args.getSwitch("retain")); }
+            catch (NumberFormatException e) { retain = -1; }
+            if (retain < 0)
+            {
+                statusMsg("Error: /retain must be a number of chunks, e.g. /retain:256, or /retain:0 to disable", sender);
+                return null;
+            }
+            gen.setRetainCap(retain);
+        }
+        if (speed == GenerationSpeed.ADAPTIVE)
+        {
+            double budget = 0, mintps = 0;
+            try
+            {
+                if (args.getSwitch("budget") != null)
+                    budget = Double.parseDouble(args.getSwitch("budget"));
+                if (args.getSwitch("minTPS") != null)
+                    mintps = Double.parseDouble(args.getSwitch("minTPS"));
+            }
+            catch (NumberFormatException e)
+            {
+                statusMsg("Error: /budget and /minTPS must be numbers, e.g. /budget:10 /minTPS:18", sender);
+                return null;
+            }
+            if (budget < 0 || mintps < 0 || mintps > 20)
+            {
+                statusMsg("Error: /budget must be positive and /minTPS between 0 and 20", sender);
+                return null;
+            }
+            gen.setAdaptiveTargets(budget, mintps);
+        }
+        
+        if (bFollow)
+        {
+            double lookahead = 10;
+            int distance = getServer().getViewDistance();
+            try
+            {
+                if (args.getSwitch("lookahead") != null)
+                    lookahead = Double.parseDouble(args.getSwitch("lookahead"));
+                if (args.getSwitch("viewDistance") != null)
+                    distance = Integer.parseInt(args.getSwitch("viewDistance"));
+            }
+            catch (NumberFormatException e) { lookahead = -1; }
+            if (args.getSwitch("destroyAndRegenerateArea") != null)
+            {
+                statusMsg("Error: /genfollow only generates land that's missing, it can't be used with /destroyAndRegenerateArea", sender);
+                return null;
+            }
+            if (lookahead < 0 || distance < 1)
             {
-                this.world.regenerateChunk(this.x, this.z);
-                this.wascreated = true;
+                statusMsg("Error: /lookahead must be a number of seconds and /viewDistance a number of chunks, e.g. /lookahead:10 /viewDistance:10", sender);
+                return null;
             }
+            gen.setFollowPlayers(lookahead, distance);
+            return gen;
         }
-        
-        public void unload() { this.unload(false); }
-        public void unload(boolean force)
+        if (bShape || bBatch)
+            numChunks = gen.addShapedRegion(world, shape);
+        else if (bCircular)
+            numChunks = gen.addCircularRegion(world, xCenter, zCenter, radius);
+        else
+            numChunks = gen.addSquareRegion(world, xStart, zStart, xEnd, zEnd);
+        if (numChunks < 1)
         {
-            if (this.world.isChunkLoaded(this.x, this.z))
-                this.world.unloadChunk(x, z, !force, !force);
+            // This shouldn't really be possible
+            statusMsg("Specified region contains no loadable chunks (did you mix up positive/negatives?).", sender);
+            return null;
         }
+        return gen;
     }
+
+    // Where /genbatch looks for job files
+    private File getJobFolder() { return new File(getDataFolder(), "jobs"); }
     
-    // *very* simple class the parse arguments with quoting
-    private class NiceArgsParseIntException extends Throwable
-    {
-        private final static long serialVersionUID = -5360208863240437042L;
-        private String argName, badValue;
-        NiceArgsParseIntException(String argName, String badValue)
-        {
-            this.argName = argName;
-            this.badValue = badValue;
-        }
-        public String getName() { return this.argName; }
-        public String getBadValue() { return this.badValue; }
-    }
-    private class NiceArgsParseException extends Throwable
-    {
-        private final static long serialVersionUID = -1873367217076514922L;
-        private String error;
-        NiceArgsParseException(String error) { this.error = error; }
-        public String getError() { return this.error; }
-    }
-    private class NiceArgs
+    // Shapes from a /genbatch job file into add, or remove for those with a -
+    // in front. Same shapes as genshape, any number to a line, and anything
+    // after a # is a comment.
+    private void readJobFile(File file, List<Shape> add, List<Shape> remove) throws IOException, NiceArgsParseException
     {
-        private ArrayList<String> cleanArgs;
-        private HashMap<String, String> switches;
-        private int[] parsedInts;
-        NiceArgs(String[] args) throws NiceArgsParseException
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try
         {
-            String allargs = "";
-            for (int x = 0; x < args.length; x++)
-                allargs += (allargs.length() > 0 ? " " : "") + args[x];
-
-            cleanArgs = new ArrayList<String>();
-            switches = new HashMap<String, String>();
-
-            // Matches any list of items delimited by spaces. An item can have quotes around it to escape spaces
-            // inside said quotes. Also honors escape sequences
-            // E.g. arg1 "arg2 stillarg2" arg3 "arg4 \"bob\" stillarg4" arg5\ stillarg5
-            Matcher m = Pattern.compile("\\s*(?:\\\"((?:[^\\\"\\\\]|\\\\.)*)\\\"|((?:[^\\s\\\\\\\"]|\\\\(?:.|$))+))(?:\\s|$)").matcher(allargs);
-            while (m.regionStart() < m.regionEnd())
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null)
             {
-                if (m.lookingAt())
+                n++;
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                line = line.trim();
+                if (line.length() == 0) continue;
+                for (String arg:line.split("\\s+"))
                 {
-                    String rawarg = m.group(1) == null ? m.group(2) : m.group(1);
-                    String arg = rawarg.replaceAll("\\\\(.|$)", "$1");
-                    if (m.group(2) != null && rawarg.charAt(0) == '/')
+                    try
                     {
-                        // Handle switches. (Matches in group 1 are quoted arugments. They cannot be switches.)
-                        String st[] = arg.substring(1).split(":");
-                        if (st.length > 2)
-                            throw new NiceArgsParseException("Invalid option: " + arg.substring(1));
-                        this.switches.put(st[0].toLowerCase(), st.length == 2 ? st[1] : "true");
+                        if (arg.startsWith("-"))
+                            remove.add(this.parseShape(arg.substring(1)));
+                        else
+                            add.add(this.parseShape(arg));
                     }
-                    else
+                    catch (NiceArgsParseException e)
                     {
-                        cleanArgs.add(arg);
+                        throw new NiceArgsParseException(file.getName() + " line " + n + ": " + e.getError());
                     }
-                    m.region(m.end(), m.regionEnd());
                 }
-                else
-                    throw new NiceArgsParseException("Error - Mismatched/errant quotes in arguments. You can escape quotes in world names with backslashes, e.g. \\\"");
             }
         }
-        public int length() { return this.cleanArgs.size(); }
-        public String get(int x) { return this.cleanArgs.get(x); }
-        public String getSwitch(String key) { return switches.get(key.toLowerCase()); }
-        public int getInt(int i, String argName) throws NiceArgsParseIntException
+        finally
         {
-            try
-                { return Integer.parseInt(this.cleanArgs.get(i)); }
-            catch (NumberFormatException e)
-                { throw new NiceArgsParseIntException(argName, this.cleanArgs.get(i)); }
+            in.close();
         }
     }
 
-    private Logger logger = Bukkit.getLogger();
-    private GenerationRegion currentRegion;
-    private Runtime runtime = Runtime.getRuntime();
-    private static Method lightingFixMethod = null;
-    private boolean lightingRequiresForce = false;
-    private ArrayDeque<GenerationRegion> pendingRegions = new ArrayDeque<GenerationRegion>();
-    private int taskId = 0;
-    private boolean quitAfter = false;
-
-    public void onEnable()
+    // One shape for genshape, in block coordinates:
+    //   rect:x1,z1,x2,z2  circle:x,z,radius  ring:x,z,inner,outer  poly:x1,z1,x2,z2,x3,z3...
+    private Shape parseShape(String arg) throws NiceArgsParseException
     {
-        statusMsg("v"+VERSION+" Loaded");
+        int split = arg.indexOf(':');
+        String name = split > 0 ? arg.substring(0, split).toLowerCase() : arg.toLowerCase();
+        String[] values = split > 0 ? arg.substring(split + 1).split(",") : new String[0];
+        long[] v = new long[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            try { v[i] = Integer.parseInt(values[i].trim()); }
+            catch (NumberFormatException e) { throw new NiceArgsParseException("\"" + values[i] + "\" in shape " + arg + " is not a number"); }
+        }
         
-        if (WorldGenerationControl.lightingFixMethod == null)
+        // Same rounding as GenerationRegion._toChunk
+        if (name.equals("rect") && v.length == 4)
         {
-            // Find lighting fix method
-            // pre 1.0: h() calls i() (private) which relights all x/z columns
-	    //          marked as needing full lighting
-            // Post 1.0: i() is public and calls k()
-	    // 1.3+ This function is removed, but a new function, 'recheckGaps',
-	    //      exists to reprocess lighting for the chunk, which is
-	    //      obfuscated to private q()
-	    String names[] = { "i", "k", "q" };
-	    
-            Class cc;
-            try
+            if (v[2] - v[0] < 1 || v[3] - v[1] < 1)
+                throw new NiceArgsParseException("In " + arg + ", x2 and z2 must be greater than x1 and z1 respectively.");
+            return new Shape.Rect((int)v[0] >> 4, (int)v[1] >> 4, (int)v[2] >> 4, (int)v[3] >> 4);
+        }
+        else if (name.equals("circle") && v.length == 3)
+        {
+            if (v[2] < 1)
+                throw new NiceArgsParseException("In " + arg + ", the radius must be > 0.");
+            return new Shape.Circle((int)v[0] >> 4, (int)v[1] >> 4, (int)v[2] >> 4);
+        }
+        else if (name.equals("ring") && v.length == 4)
+        {
+            if (v[2] < 0 || v[3] <= v[2])
+                throw new NiceArgsParseException("In " + arg + ", the outer radius must be larger than the inner one.");
+            Shape outer = new Shape.Circle((int)v[0] >> 4, (int)v[1] >> 4, (int)v[3] >> 4);
+            if (v[2] == 0)
+                return outer;
+            return new Shape.Difference(outer, new Shape.Circle((int)v[0] >> 4, (int)v[1] >> 4, (int)v[2] >> 4));
+        }
+        else if ((name.equals("poly") || name.equals("polygon")) && v.length >= 6 && v.length % 2 == 0)
+        {
+            long[] xs = new long[v.length / 2], zs = new long[v.length / 2];
+            for (int i = 0; i < xs.length; i++)
             {
-                cc = Class.forName("net.minecraft.server.Chunk");
-		for (String n:names)
-		{
-		    try
-		    {
-			Method m = cc.getDeclaredMethod(n);
-			if ((m.getModifiers() & Modifier.PRIVATE) != 0)
-			{
-			    m.setAccessible(true); // bad touch!
-			    WorldGenerationControl.lightingFixMethod = m;
-			    statusMsg("Found lighting fix method '"+n+"'");
-			    // 1.3+ doesn't initialize lighting on new chunks at all, meaning calling
-			    // initLighting is required prior to get any lighting, so until we're smarter about
-			    // detecting this, always require force here
-			    if (n == "q")
-				this.lightingRequiresForce = true;
-			    break;
-			}
-		    }
-		    catch (Exception e) {} // various method not found exceptions
-		}
+                xs[i] = v[i * 2];
+                zs[i] = v[i * 2 + 1];
             }
-            catch (Exception e) {} // Failed to find class
-	    if (WorldGenerationControl.lightingFixMethod == null)
-	    {
-		statusMsg("WARNING: Failed to find lighting fix method, /lighting will not work for this CB build");
-	    }    
+            return new Shape.Polygon(xs, zs);
         }
+        throw new NiceArgsParseException("Invalid shape \"" + arg + "\", expected rect:x1,z1,x2,z2 circle:x,z,radius ring:x,z,inner,outer or poly:x1,z1,x2,z2,x3,z3...");
+    }
+
+    public void queueGeneration(GenerationRegion region)
+    {
+        this.enqueue(region);
+        this.startPending();
+        this.startTask();
     }
+
+    public void quitAfterGeneration() { this.quitAfterGeneration(true); }
+    public void quitAfterGeneration(boolean yesno) { if (this.runningRegions.size() > 0) this.quitAfter = yesno; }
     
-    // Send a status message to all players
-    // with worldgenerationcontrol.statusmessage permissions,
-    // as well as the console. If a player/console (target) is 
-    // specified, include him regardless of his permissions.
-    // if senderOnly is true, only send the message to him.
-    private void statusMsg(String str, CommandSender target, boolean senderOnly)
+    public void cancelGeneration()
     {
-        //ChatColor.stripColor
-        String msg = ChatColor.DARK_GRAY + "[" + ChatColor.GRAY + "WorldGenCtrl" + ChatColor.DARK_GRAY + "]" + ChatColor.WHITE + " " + str;
-        
-        // Message target if provided
-        if (target instanceof Player)
-            // commandsender.sendmessage doesn't support color, even if its a player :<
-            ((Player)target).sendMessage(msg);
-        else if (target != null)
-            target.sendMessage(ChatColor.stripColor(msg));
-        
-        if (!senderOnly)
+        this.quitAfter = false;
+        for (GenerationRegion r:this.runningRegions)
         {
-            // Message all non-target players
-            for (Player p:getServer().getOnlinePlayers())
-            {
-                if (p != target && p.hasPermission("worldgenerationcontrol.statusupdates"))
-                    p.sendMessage(msg);
-            }
-            
-            // Message console/logger, unless its the target
-            if (!(target instanceof ConsoleCommandSender))
-                logger.info(ChatColor.stripColor(msg));
+            r.setStopping(false);
+            r.cancelRemaining();
+        }
+        for (GenerationRegion r:this.pendingRegions)
+        {
+            this.journalDone(r.getId());
+            r.releaseMetrics();
         }
+        this.pendingRegions.clear();
     }
-    private void statusMsg(String str)
+    
+    // Running or queued generation with this id, or null
+    public GenerationRegion getGeneration(int id)
     {
-        this.statusMsg(str, null, false);
+        for (GenerationRegion r:this.runningRegions)
+            if (r.getId() == id) return r;
+        for (GenerationRegion r:this.pendingRegions)
+            if (r.getId() == id) return r;
+        return null;
     }
-    private void statusMsg(String str, CommandSender target)
+    
+    // Everything, running first, then in the order they'll start
+    public List<GenerationRegion> getGenerations()
     {
-        this.statusMsg(str, target, true);
+        ArrayList<GenerationRegion> ret = new ArrayList<GenerationRegion>(this.runningRegions);
+        ret.addAll(this.pendingRegions);
+        return ret;
     }
-
-    public void onDisable()
+    
+    public void cancelGeneration(GenerationRegion gen)
     {
-        if (this.taskId != 0)
+        if (this.pendingRegions.remove(gen))
         {
-            statusMsg("Plugin unloaded, aborting generation.");
-            this.endTask();
+            this.journalDone(gen.getId());
+            gen.releaseMetrics();
+            return;
         }
+        // Let it run out, so it finishes off like any other
+        gen.setStopping(false);
+        gen.setPaused(false);
+        gen.cancelRemaining();
     }
-
     
-
-    public boolean onCommand(CommandSender sender, Command cmd, String commandLabel, String[] rawargs)
+    // A running generation finishes the region it's on first
+    public void pauseGeneration(GenerationRegion gen)
     {
-        NiceArgs args;
-        try
-        {
-            args = new NiceArgs(rawargs);
-        }
-        catch (NiceArgsParseException e)
+        if (gen.isPaused()) return;
+        gen.setPaused(true);
+        if (this.runningRegions.contains(gen))
+            gen.setStopping(true);
+        this.journalUpdate(gen);
+    }
+    
+    public void resumeGeneration(GenerationRegion gen)
+    {
+        if (!gen.isPaused()) return;
+        gen.setPaused(false);
+        gen.setStopping(false);
+        this.journalUpdate(gen);
+        this.startPending();
+        this.startTask();
+    }
+    
+    public void setGenerationPriority(GenerationRegion gen, int priority)
+    {
+        gen.setPriority(priority);
+        if (this.pendingRegions.remove(gen))
+            this.enqueue(gen);
+        this.journalUpdate(gen);
+        this.startPending();
+    }
+    
+    // Queue in priority order, first come first served within a priority
+    private void enqueue(GenerationRegion gen)
+    {
+        int i = 0;
+        while (i < this.pendingRegions.size() && !gen.runsBefore(this.pendingRegions.get(i)))
+            i++;
+        this.pendingRegions.add(i, gen);
+    }
+    
+    // Start queued generations on worlds nothing else is generating, up to
+    // maxRunning at once. A queued generation with a higher priority than a
+    // running one that's in its way has that one set aside once it finishes
+    // its current region; it goes back in the queue with its progress and
+    // carries on when there's room again.
+    private void startPending()
+    {
+        // Runs every tick, so no iterators or copies unless there's
+        // something to do
+        int freeing = 0;
+        for (int i = 0; i < this.runningRegions.size(); i++)
         {
-            statusMsg(e.getError(), sender);
-            return true;
+            GenerationRegion r = this.runningRegions.get(i);
+            if (!r.isStopping()) continue;
+            if (!r.isBetweenRegions())
+            {
+                freeing++;
+                continue;
+            }
+            this.runningRegions.remove(i--);
+            r.setStopping(false);
+            r.releaseRetained();
+            this.enqueue(r);
         }
         
-        boolean bCircular = commandLabel.compareToIgnoreCase("generatecircularregion") == 0 || commandLabel.compareToIgnoreCase("gencircle") == 0;
-        if (bCircular || commandLabel.compareToIgnoreCase("generateregion") == 0 || commandLabel.compareToIgnoreCase("genregion") == 0)
+        for (int i = 0; i < this.pendingRegions.size(); i++)
         {
-            if (!sender.isOp() && !sender.hasPermission("worldgenerationcontrol.generate"))
-            {
-                statusMsg(ChatColor.RED + "Only server ops or those with the worldgenerationcontrol.generate permission may do that :<", sender);
-                return true;
-            }
-            if     ((bCircular && (args.length() != 1 && args.length() != 4))
-                || !bCircular && (args.length() != 5))
+            GenerationRegion r = this.pendingRegions.get(i);
+            if (r.isPaused()) continue;
+            GenerationRegion busy = null;
+            for (int j = 0; j < this.runningRegions.size(); j++)
+                if (this.runningRegions.get(j).getWorldName().equals(r.getWorldName()))
+                    busy = this.runningRegions.get(j);
+            if (busy == null && this.runningRegions.size() < this.maxRunning)
             {
-                return false;
+                this.pendingRegions.remove(i--);
+                r.setNextTick(this.tick + r.getTaskPeriod());
+                this.runningRegions.add(r);
+                continue;
             }
             
-            World world = null;
-            int xCenter = 0, zCenter = 0, xStart = 0, zStart = 0, xEnd = 0, zEnd = 0, radius = 0;
-            try
+            // Something has to make way for it, if anything will
+            GenerationRegion victim = busy;
+            if (victim == null)
             {
-                if (bCircular)
-                {
-                    radius = args.getInt(0, "radius");
-
-                    if (radius < 1)
-                    {
-                        statusMsg("Radius must be > 1", sender);
-                        return true;
-                    }
-                    
-                    if (sender instanceof Player && args.length() < 4)
-                    {
-                        // Use player's location to center circle
-                        Block c = ((Player)sender).getLocation().getBlock();
-                        world = c.getWorld();
-                        xCenter = c.getX();
-                        zCenter = c.getZ();
-                    }
-                    else
-                    {
-                        if (args.length() < 4)
-                        {
-                            statusMsg("You're not a player, so you need to specify a world name and location.", sender);
-                            return true;
-                        }
-                        world = getServer().getWorld(args.get(1));
-                        if (world == null)
-                        {
-                            statusMsg("World \"" + ChatColor.GOLD + args.get(1) + ChatColor.WHITE + "\" does not exist.", sender);
-                            return true;
-                        }
-                        xCenter = args.getInt(2, "xCenter");
-                        zCenter = args.getInt(3, "zCenter");
-                    }
-                }
-                else
+                // A slot is already on its way
+                if (freeing > 0)
                 {
-                    world = getServer().getWorld(args.get(0));
-                    if (world == null)
-                    {
-                        statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
-                        return true;
-                    }
-                    xStart = args.getInt(1, "xStart");
-                    zStart = args.getInt(2, "zStart");
-                    xEnd   = args.getInt(3, "xEnd");
-                    zEnd   = args.getInt(4, "zEnd");
+                    freeing--;
+                    continue;
                 }
-            }
-            catch (NiceArgsParseIntException e)
-            {
-                statusMsg("Error: " + e.getName() + " argument must be a number, not \"" + e.getBadValue() + "\"", sender);
-                return true;
-            }
-            
-            if (bCircular && radius < 1)
-            {
-                statusMsg("Circle radius must be > 0.", sender);
-                return true;
-            }
-            else if (!bCircular && (xEnd - xStart < 1 || zEnd - zStart < 1))
-            {
-                statusMsg("xEnd and zEnd must be greater than xStart and zStart respectively.", sender);
-                return true;
-            }
-
-            int numChunks;
-            GenerationSpeed speed = GenerationSpeed.NORMAL;
-            if (args.getSwitch("allatonce") != null)
-                speed = GenerationSpeed.ALLATONCE;
-            else if (args.getSwitch("veryfast") != null)
-                speed = GenerationSpeed.VERYFAST;
-            else if (args.getSwitch("fast") != null)
-                speed = GenerationSpeed.FAST;
-            else if (args.getSwitch("slow") != null)
-                speed = GenerationSpeed.SLOW;
-            else if (args.getSwitch("veryslow") != null)
-                speed = GenerationSpeed.VERYSLOW;
-            
-            GenerationLighting lighting;
-            String lightswitch = args.getSwitch("lighting");
-            if (lightswitch == null)
-                lightswitch = "normal";
-            else
-                lightswitch = lightswitch.toLowerCase();
-            
-            if (!lightswitch.equals("none"))
-            {
-                if (lightswitch.equals("extreme") || lightswitch.equals("force"))
-                    lighting = GenerationLighting.EXTREME;
-                else if (lightswitch.equals("true") || lightswitch.equals("normal"))
-		{
-		    lighting = this.lightingRequiresForce ? GenerationLighting.EXTREME : GenerationLighting.NORMAL;
-		}
-                else
+                for (int j = 0; j < this.runningRegions.size(); j++)
                 {
-                    statusMsg("Invalid lighting mode \""+lightswitch+"\"");
-                    return true;
+                    GenerationRegion other = this.runningRegions.get(j);
+                    if (!other.isStopping() && (victim == null || victim.runsBefore(other)))
+                        victim = other;
                 }
             }
-            else
-                lighting = GenerationLighting.NONE;
-            
-            GenerationRegion gen = new GenerationRegion(world);
-            gen.setSpeed(speed);
-            gen.setLighting(lighting);
-            if (args.getSwitch("debug") != null || args.getSwitch("verbose") != null)
-                gen.setDebug(true);
-            if (args.getSwitch("destroyAndRegenerateArea") != null)
-                gen.setForceRegen(true);
-            if (args.getSwitch("onlyWhenEmpty") != null)
-                gen.setOnlyWhenEmpty(true);
-            if (args.getSwitch("forceSave") != null || args.getSwitch("forceKeepUp") != null)
-                gen.setForceKeepup(true);
-            
-            if (bCircular)
-                numChunks = gen.addCircularRegion(world, xCenter, zCenter, radius);
-            else
-                numChunks = gen.addSquareRegion(world, xStart, zStart, xEnd, zEnd);
-            if (numChunks < 1)
-            {
-                // This shouldn't really be possible
-                statusMsg("Specified region contains no loadable chunks (did you mix up positive/negatives?).", sender);
-                return true;
-            }
-            this.queueGeneration(gen);
-            if (args.getSwitch("quitafter") != null)
-                this.quitAfterGeneration(true);
-            statusMsg((sender instanceof Player ? ("Player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "The console") + " queued generation of " + numChunks + " chunk region (" + (numChunks * 16) + " blocks).");
-        }
-        else if (commandLabel.compareToIgnoreCase("cancelgeneration") == 0 || commandLabel.compareToIgnoreCase("cancelgen") == 0)
-        {
-            if (this.taskId == 0)
-            {
-                statusMsg("There is no chunk generation in progress", sender);
-                return true;
-            }
-            else
+            if (victim != null && !victim.isStopping() && victim.getPriority() < r.getPriority())
             {
-                statusMsg("Generation canceled by " + (sender instanceof Player ? ("player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "the console"));
-                this.cancelGeneration();
+                statusMsg("Setting generation #" + victim.getId() + " aside for higher priority generation #" + r.getId() + ", it will carry on afterwards.");
+                victim.setStopping(true);
             }
         }
-        return true;
-    }
-    
-    public void queueGeneration(GenerationRegion region)
-    {
-        if (this.currentRegion != null)
-            this.pendingRegions.push(region);
-        else
-        {
-            this.currentRegion = region;
-            this.restartTask(region.shouldRunAllAtOnce() ? 2 : 60);
-        }
-    }
-
-    public void quitAfterGeneration() { this.quitAfterGeneration(true); }
-    public void quitAfterGeneration(boolean yesno) { if (this.currentRegion != null) this.quitAfter = yesno; }
-    
-    public void cancelGeneration()
-    {
-        this.quitAfter = false;
-        if (this.currentRegion != null) this.currentRegion.cancelRemaining();
-        this.pendingRegions.clear();
     }
     
     // use cancelGeneration to stop generation, this should only be used internally
@@ -1026,33 +3196,69 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         this.taskId = 0;
     }
     
-    private void restartTask() { this.restartTask(60); }
-    private void restartTask(int period)
+    private void startTask()
     {
-        this.endTask();
-        this.taskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, this, period, period);
+        if (this.taskId != 0) return;
+        this.tickMonitor.reset();
+        this.taskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, this, 1, 1);
     }
 
+    // Runs every tick. Each running generation earns its weight's share of
+    // the tick budget, and pays for however long its steps and lighting
+    // actually take. Of those whose own speed says they're due a step, the
+    // one with the most credit gets it. Never more than one step a tick, so
+    // running several generations fills more ticks rather than making each
+    // one worse.
     public void run()
     {
         if (this.taskId == 0) return; // Prevent inappropriate calls
-
-        int pending = this.pendingRegions.size();
-        // Pass -1 as pending if we're about to quit
-        if (this.currentRegion.runStep((pending == 0 && this.quitAfter) ? -1 : pending))
+        this.tick++;
+        this.tickMonitor.run();
+        this.startPending();
+        if (this.runningRegions.size() == 0)
+        {
+            // Everything left is paused
+            this.endTask();
+            return;
+        }
+        
+        boolean budgeted = this.tickBudget > 0;
+        double weights = 0;
+        for (int i = 0; i < this.runningRegions.size(); i++)
+            weights += this.runningRegions.get(i).getWeight();
+        GenerationRegion next = null;
+        for (int i = 0; i < this.runningRegions.size(); i++)
         {
-            if (pending > 0)
+            GenerationRegion r = this.runningRegions.get(i);
+            if (budgeted)
+                r.earn(this.tickBudget * r.getWeight() / weights);
+            // A region in progress is loaded and then lit a slice at a time,
+            // every tick it can afford
+            if (r.canAfford(budgeted))
             {
-                GenerationRegion next = this.pendingRegions.pop();
-                // Adjust scheduling if needed
-                if (this.currentRegion.shouldRunAllAtOnce() != next.shouldRunAllAtOnce())
-                    this.restartTask(next.shouldRunAllAtOnce() ? 2 : 60);
-
-                this.currentRegion = next;
+                long start = System.nanoTime();
+                r.runSlice();
+                r.spend(System.nanoTime() - start);
             }
-            else
+            if (!r.isStopping() && r.isDue(this.tick, budgeted) && (next == null || r.getCredit() > next.getCredit()))
+                next = r;
+        }
+        if (next == null) return;
+        
+        int pending = this.pendingRegions.size();
+        // Pass -1 as pending if we're about to quit
+        boolean last = pending == 0 && this.runningRegions.size() == 1;
+        long start = System.nanoTime();
+        boolean done = next.runStep((last && this.quitAfter) ? -1 : pending);
+        next.spend(System.nanoTime() - start);
+        next.setNextTick(this.tick + next.getTaskPeriod());
+        if (done)
+        {
+            this.journalDone(next.getId());
+            this.runningRegions.remove(next);
+            this.startPending();
+            if (this.runningRegions.size() == 0)
             {
-                this.currentRegion = null;
                 this.endTask();
                 if (this.quitAfter)
                 {